@@ -0,0 +1,33 @@
+package qsim;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** The cost of drawing an arrival time: Queue.nextArrivalTime() */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ArrivalBench {
+
+    @Param({"EXACT", "FAST"})
+    public String variates;
+
+    private Queue lane;
+    private long now = 0;
+
+    @Setup
+    public void setup() throws IOException {
+	PrintStream out = BenchSupport.quiet();
+	try {
+	    lane = BenchSupport.simulator(BenchSupport.parameters(1, "P0", "EVENTS", 0, "variates=" + variates), 0).lanes[0];
+	} finally {
+	    BenchSupport.restore(out);
+	}
+    }
+
+    @Benchmark
+    public long nextArrivalTime() {
+	return now = lane.nextArrivalTime(now);
+    }
+}
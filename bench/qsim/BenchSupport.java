@@ -0,0 +1,57 @@
+package qsim;
+
+import java.io.*;
+
+/** Helpers shared by the JMH benchmarks. The benchmarks live in
+    package qsim, so that they can call the package-private methods on
+    the simulator's hot paths directly.
+ */
+class BenchSupport {
+
+    /** A configuration like config/config-fast-and-slow-P3.dat (a fast
+	and a slow triangular profile), with the specified number of
+	lanes, policy and simulation engine.
+	@param nGenMax The number of customers to generate per lane (0 means no limit)
+	@param options Any other config file lines, such as "variates=FAST"
+     */
+    static Parameters parameters(int L, String policy, String engine, int nGenMax,
+				 String... options) throws IOException {
+	String s =
+	    "L=" + L + "\n" +
+	    "lambda=0.10\n" +
+	    "nGenMax=" + nGenMax + "\n" +
+	    "fracBad=0.2\n" +
+	    "dAcceptable=0.4\n" +
+	    "policy=" + policy + "\n" +
+	    "policy.countCurrentlyScreened=PARTIALLY\n" +
+	    "engine=" + engine + "\n" +
+	    "p1.L=2\np1.M=4\np1.H=6\np1.d=0.3\n" +
+	    "p2.L=10\np2.M=20\np2.H=30\np2.d=0.8\n";
+	for(String o: options) s += o + "\n";
+	return new Parameters(new ParseConfig(new StringReader(s)));
+    }
+
+    /** Creates a batch-mode simulator, running at full speed and not
+	printing the state of the lanes as it goes */
+    static Qsim simulator(Parameters para, long seed) {
+	Qsim qsim = new Qsim(para, 0, null, new RandomStreams(seed, false, false, para.rng));
+	qsim.setHeadless(true);
+	qsim.setFullSpeed(true);
+	return qsim;
+    }
+
+    /** Discards everything written to System.out (the simulator is
+	quite talkative), so that it does not end up mixed with the
+	benchmark results.
+	@return The original System.out, to be restored with {@link #restore(PrintStream)}
+     */
+    static PrintStream quiet() {
+	PrintStream out = System.out;
+	System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+	return out;
+    }
+
+    static void restore(PrintStream out) {
+	if (out != null) System.setOut(out);
+    }
+}
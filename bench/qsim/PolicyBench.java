@@ -0,0 +1,51 @@
+package qsim;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** The cost of a profile choice, chooseProfile(), for each built-in
+    policy and various numbers of lanes. The lanes are taken, in turn,
+    from a simulator that has been run for a while, so that the queues
+    have various lengths. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class PolicyBench {
+
+    @Param({"P0", "P1", "P2", "P3"})
+    public String policy;
+
+    @Param({"10", "100", "1000"})
+    public int L;
+
+    /** How long the simulator is run before the measurements start */
+    static final long WARMUP_TIME = 1000;
+
+    private Queue[] lanes;
+    private Policy p;
+    private int next = 0;
+    /** P3 prints its tickets as it goes */
+    private PrintStream out;
+
+    @Setup
+    public void setup() throws IOException {
+	out = BenchSupport.quiet();
+	Qsim qsim = BenchSupport.simulator(BenchSupport.parameters(L, policy, "EVENTS", 0), 0);
+	qsim.simulate(WARMUP_TIME);
+	lanes = qsim.lanes;
+	p = qsim.policy;
+    }
+
+    @TearDown
+    public void tearDown() {
+	BenchSupport.restore(out);
+    }
+
+    @Benchmark
+    public int chooseProfile() {
+	int j = next;
+	next = (j+1 == L) ? 0 : j+1;
+	return p.chooseProfile(j, lanes);
+    }
+}
@@ -0,0 +1,50 @@
+package qsim;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Compares the random number generator algorithms (configuration
+    parameter "rng") on complete simulation runs, as in {@link
+    SimulateBench}, with either method of generating variates. The
+    number of events processed per second is reported as the
+    secondary result "events". */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class RngBench {
+
+    @Param({"RANDOM", "L64X128MIX", "XOROSHIRO128PP", "SPLITMIX64"})
+    public String rng;
+
+    @Param({"EXACT", "FAST"})
+    public String variates;
+
+    @Param({"100"})
+    public int L;
+
+    static final long T = 2000;
+
+    private Parameters para;
+    private long seed = 0;
+    private PrintStream out;
+
+    @Setup
+    public void setup() throws IOException {
+	out = BenchSupport.quiet();
+	para = BenchSupport.parameters(L, "P1", "EVENTS", 0, "rng=" + rng, "variates=" + variates);
+    }
+
+    @TearDown
+    public void tearDown() {
+	BenchSupport.restore(out);
+    }
+
+    @Benchmark
+    public long simulate(SimulateBench.Events ev) {
+	Qsim qsim = BenchSupport.simulator(para, seed++);
+	qsim.simulate(T);
+	ev.events += qsim.sumArv + qsim.sumDone;
+	return qsim.getNow();
+    }
+}
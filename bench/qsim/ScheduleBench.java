@@ -0,0 +1,47 @@
+package qsim;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** The cost of reading an arrival schedule file,
+    StaticArrivalSchedule.readFile(), in the text or the binary
+    format. The file has the same number of arrivals (N) for any
+    number of lanes. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class ScheduleBench {
+
+    @Param({"10", "100", "1000"})
+    public int L;
+
+    @Param({"TEXT", "BINARY"})
+    public String format;
+
+    static final int N = 100000;
+
+    private File f;
+    private PrintStream out;
+
+    @Setup
+    public void setup() throws IOException {
+	out = BenchSupport.quiet();
+	f = File.createTempFile("qsim-bench-arrivals-", ".dat");
+	BenchSupport.simulator(BenchSupport.parameters(L, "P0", "EVENTS", N/L), 0).generateArrivalSchedule(f);
+	if (format.equals("BINARY")) {
+	    StaticArrivalSchedule.writeBinary(StaticArrivalSchedule.readFile(f, L), f);
+	}
+    }
+
+    @TearDown
+    public void tearDown() {
+	f.delete();
+	BenchSupport.restore(out);
+    }
+
+    @Benchmark
+    public StaticArrivalSchedule[] readFile() throws IOException, Parameters.ParseException {
+	return StaticArrivalSchedule.readFile(f, L);
+    }
+}
@@ -0,0 +1,37 @@
+package qsim;
+
+import java.util.concurrent.TimeUnit;
+import java.util.random.RandomGenerator;
+import org.openjdk.jmh.annotations.*;
+
+/** The cost of drawing a screening time: ScreenerProfile.serviceTime(),
+    or, with variates=FAST, ScreenerProfile.fastServiceTime() */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ServiceTimeBench {
+
+    @Param({"TRIANGULAR", "UNIFORM"})
+    public String shape;
+
+    @Param({"EXACT", "FAST"})
+    public String variates;
+
+    private ScreenerProfile sp;
+    private RandomGenerator gen;
+    private boolean fast;
+
+    @Setup
+    public void setup() {
+	sp = shape.equals("UNIFORM") ?
+	    new ScreenerProfile(10, 30, 0.8) :
+	    new ScreenerProfile(10, 20, 30, 0.8);
+	gen = new RandomStreams(0).get(0, RandomStreams.Purpose.SERVICE);
+	fast = variates.equals("FAST");
+    }
+
+    @Benchmark
+    public long serviceTime() {
+	return fast ? sp.fastServiceTime(gen) : (long)sp.serviceTime(gen);
+    }
+}
@@ -0,0 +1,57 @@
+package qsim;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** End-to-end simulation speed: each operation is a complete run of
+    simulate() over T units of simulated time. Besides the runs per
+    second, the number of events (customer arrivals and completed
+    screenings) processed per second is reported, as the secondary
+    result "events". */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class SimulateBench {
+
+    @Param({"10", "100", "1000"})
+    public int L;
+
+    @Param({"EVENTS", "SCAN"})
+    public String engine;
+
+    @Param({"P1", "P3"})
+    public String policy;
+
+    static final long T = 2000;
+
+    /** The events processed so far */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Events {
+	public long events;
+    }
+
+    private Parameters para;
+    private long seed = 0;
+    private PrintStream out;
+
+    @Setup
+    public void setup() throws IOException {
+	out = BenchSupport.quiet();
+	para = BenchSupport.parameters(L, policy, engine, 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+	BenchSupport.restore(out);
+    }
+
+    @Benchmark
+    public long simulate(Events ev) {
+	Qsim qsim = BenchSupport.simulator(para, seed++);
+	qsim.simulate(T);
+	ev.events += qsim.sumArv + qsim.sumDone;
+	return qsim.getNow();
+    }
+}
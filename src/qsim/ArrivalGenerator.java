@@ -0,0 +1,48 @@
+package qsim;
+
+import java.util.random.RandomGenerator;
+
+/** Generates the customers (arrival times and threat flags) of one
+    lane, one at a time, for {@link GenerateArrivals}. The lane has its
+    own generators for the interarrival times and the threats, as in
+    the CRN mode of {@link RandomStreams}, and draws from them with
+    {@link Queue#drawCustomer(Parameters, RandomGenerator,
+    RandomGenerator, boolean, long)}, as a lane of the simulator does
+    when it generates its customers dynamically. Thus the schedule
+    generated for a run with the seed s contains exactly the customers
+    of a simulator run with the seed s and -Dcrn=true.
+ */
+final class ArrivalGenerator {
+
+    private final Parameters para;
+    private final RandomGenerator arrivalGen, threatGen;
+    /** As per {@link Queue#fastArrivals(Parameters, RandomStreams)} */
+    private final boolean fast;
+    /** The arrival time of the latest customer */
+    private long now = 0;
+    /** How many customers have been generated */
+    private int cnt = 0;
+
+    /** @param streams The run's streams (which must be in the CRN mode)
+	@param lane The (0-based) lane number */
+    ArrivalGenerator(Parameters _para, RandomStreams streams, int lane) {
+	if (!streams.crn) throw new IllegalArgumentException("Each lane needs its own random number generators");
+	para = _para;
+	arrivalGen = streams.get(lane, RandomStreams.Purpose.INTERARRIVAL);
+	threatGen = streams.get(lane, RandomStreams.Purpose.THREAT);
+	fast = Queue.fastArrivals(para, streams);
+    }
+
+    boolean hasNext() {
+	return cnt < para.nGenMax;
+    }
+
+    /** The next customer, packed as per {@link
+	StaticArrivalSchedule#pack(long, boolean)} */
+    long next() {
+	long b = Queue.drawCustomer(para, threatGen, arrivalGen, fast, now);
+	now = StaticArrivalSchedule.time(b);
+	cnt++;
+	return b;
+    }
+}
@@ -0,0 +1,273 @@
+package qsim;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/** Reads the arrivals of all lanes from a text schedule file
+    incrementally, as the simulation needs them, rather than all at
+    once (see {@link StaticArrivalSchedule#open(File, int)}).
+
+    <p>The file is read in chunks. The arrivals that have been read,
+    but not yet used by their lanes, are kept in a lookahead buffer for
+    each lane; when a lane needs its next arrival, and its buffer is
+    empty, the file is read further until that arrival is found. Since
+    the file lists the arrivals of all lanes in chronological order,
+    the buffers only hold the arrivals of the next few moments. (A
+    file listing the lanes one after another is read correctly too,
+    but then the buffers may end up holding most of the file.)
+
+    <p>The file is read through once when the reader is created, to
+    check it and to count each lane's arrivals, so that the lanes know
+    when they are done without reading ahead to the end of the file.
+
+    <p>The file is kept open while the run goes on, and is closed by
+    {@link #close()} at the end of the run.
+
+    <p>In a checkpoint, the reader is saved as its position in the
+    file, along with the buffered arrivals; after it is read back, the
+    file is opened again, and read from that position on.
+ */
+final class ArrivalStream implements Serializable {
+
+    /** The schedule file */
+    final File file;
+    /** The number of lanes */
+    private final int L;
+    /** The length of the file when it was checked */
+    private long length;
+    /** The position in the file of the first byte that has not been
+	parsed yet, and the number of the line before it */
+    private long pos = 0;
+    private int lineNo = 0;
+
+    /** The lookahead buffer of each lane: cnt[j] packed arrivals,
+	starting at buf[j][head[j]], wrapping around */
+    private final long[][] buf;
+    private final int[] head, cnt;
+
+    /** The part of the file being parsed; chunk[chunkPos] is the byte
+	at pos, and chunk[chunkLen-1] the last byte read */
+    private transient byte[] chunk;
+    private transient int chunkPos, chunkLen;
+    static final int CHUNK = 1<<16;
+    /** The open file; null if it has not been opened yet, or has been closed */
+    private transient FileChannel channel;
+
+    /** The arrival read by the last call to {@link #readRecord()}:
+	time, (0-based) lane, threat flag */
+    private transient long t;
+    private transient int j;
+    private transient boolean threat;
+    /** The numbers on the line being parsed */
+    private transient long[] q;
+
+    ArrivalStream(File _file, int _L) {
+	file = _file;
+	L = _L;
+	length = file.length();
+	buf = new long[L][];
+	head = new int[L];
+	cnt = new int[L];
+	for(int k=0; k<L; k++) buf[k] = new long[4];
+    }
+
+    /** Reads the whole file, checking it, and goes back to the beginning.
+	@return the number of arrivals in each lane */
+    long[] scan() throws IOException, Parameters.ParseException {
+	long[] n = new long[L];
+	long[] lastTime = new long[L];
+	while(readRecord()) {
+	    if (n[j]>0 && lastTime[j] > t) throw error("Arrival times for lane "+(j+1)+" are not in chronological order: " + t + " after " + lastTime[j]);
+	    lastTime[j] = t;
+	    n[j]++;
+	}
+	rewind();
+	return n;
+    }
+
+    private void rewind() {
+	pos = 0;
+	lineNo = 0;
+	chunkPos = chunkLen = 0;
+    }
+
+    /** The next arrival for lane k (0-based), packed as per {@link
+	StaticArrivalSchedule#pack(long, boolean)}. The caller must
+	know that there is one. */
+    long next(int k) {
+	try {
+	    while(cnt[k]==0) {
+		if (!readRecord()) throw new IllegalArgumentException("The arrival schedule file " + file + " has fewer arrivals for lane " + (k+1) + " than it used to; has it been modified?");
+		push(j, StaticArrivalSchedule.pack(t, threat));
+	    }
+	} catch(IOException ex) {
+	    throw new IllegalArgumentException("Error reading arrival schedule file " + file + ": " + ex.getMessage(), ex);
+	}
+	long[] w = buf[k];
+	long b = w[head[k]];
+	head[k] = (head[k]+1) % w.length;
+	cnt[k]--;
+	return b;
+    }
+
+    /** Adds an arrival to lane k's buffer, enlarging it if needed */
+    private void push(int k, long b) {
+	long[] w = buf[k];
+	if (cnt[k] == w.length) {
+	    long[] z = new long[2*w.length];
+	    for(int i=0; i<cnt[k]; i++) z[i] = w[(head[k]+i) % w.length];
+	    buf[k] = w = z;
+	    head[k] = 0;
+	}
+	w[(head[k]+cnt[k]) % w.length] = b;
+	cnt[k]++;
+    }
+
+    /** Parses the next line of the file (skipping comments) into t, j,
+	threat, with the same checks as {@link
+	StaticArrivalSchedule#readFile(File, int)} applies.
+	@return false at the end of the file
+    */
+    private boolean readRecord() throws IOException, Parameters.ParseException {
+	while(true) {
+	    int end = lineEnd();
+	    if (end < 0) return false;
+	    final int start = chunkPos;
+	    final int next = (end < chunkLen)? end+1 : end;
+	    lineNo++;
+	    int p = skip(start, end, true);
+	    if (p < end && chunk[p]=='#') {
+		advance(next);
+		continue;
+	    }
+	    if (q == null) q = new long[3];
+	    int nq = 0;
+	    while(p < end) {
+		int e = skip(p, end, false);
+		if (nq == q.length) throw error("Cannot parse line: " + line(start, end));
+		q[nq++] = parseLong(p, e, start, end);
+		p = skip(e, end, true);
+	    }
+	    if (nq != q.length) throw error("Cannot parse line: " + line(start, end));
+	    if (q[0] < 0)  throw error("Negative time t=" + q[0]);
+	    if (q[1] < 1 || q[1] > L)  throw error("Lane number out of range ("+q[1]+")");
+	    if (q[2] < 0 || q[2] > 1)  throw error("Threat must be 0 or 1 (found "+q[2]+")");
+	    t = q[0];
+	    j = (int)q[1] - 1;
+	    threat = (q[2]!=0);
+	    advance(next);
+	    return true;
+	}
+    }
+
+    private void advance(int next) {
+	pos += next - chunkPos;
+	chunkPos = next;
+    }
+
+    /** The position of the first byte at or after p (but before end)
+	that is (or, with space=false, is not) white space; or end */
+    private int skip(int p, int end, boolean space) {
+	while(p < end && (chunk[p] <= ' ') == space) p++;
+	return p;
+    }
+
+    /** Parses the (signed) integer in chunk[from..to-1], which is
+	on the line chunk[start..end-1] */
+    private long parseLong(int from, int to, int start, int end) throws Parameters.ParseException {
+	int i = from;
+	boolean neg = (chunk[i]=='-');
+	if (neg || chunk[i]=='+') i++;
+	if (i == to) throw error("Cannot parse line: " + line(start, end));
+	long x = 0;
+	for(; i<to; i++) {
+	    int d = chunk[i] - '0';
+	    if (d < 0 || d > 9 || x > (Long.MAX_VALUE - d)/10) throw error("Cannot parse line: " + line(start, end));
+	    x = 10*x + d;
+	}
+	return neg? -x : x;
+    }
+
+    private String line(int start, int end) {
+	return new String(chunk, start, end-start).trim();
+    }
+
+    private Parameters.ParseException error(String msg) {
+	return new Parameters.ParseException("File="+file+", line=" + lineNo + ": " + msg);
+    }
+
+    /** Makes sure that the line starting at chunkPos is in the chunk
+	in its entirety.
+	@return the position of the newline character at its end (or
+	chunkLen, if the file ends without one); -1 at the end of the file
+    */
+    private int lineEnd() throws IOException {
+	int i = chunkPos;
+	while(true) {
+	    for(; i<chunkLen; i++) {
+		if (chunk[i]=='\n') return i;
+	    }
+	    int scanned = i - chunkPos;
+	    if (!fill()) return (chunkLen > chunkPos)? chunkLen : -1;
+	    i = chunkPos + scanned;
+	}
+    }
+
+    /** Reads more of the file into the chunk, after the bytes that
+	have not been parsed yet, which are moved to the beginning. The
+	file is opened if it is not open yet.
+	@return false if there is nothing more to read
+    */
+    private boolean fill() throws IOException {
+	if (chunk == null) {
+	    chunk = new byte[CHUNK];
+	    chunkPos = chunkLen = 0;
+	}
+	if (chunkPos > 0) {
+	    System.arraycopy(chunk, chunkPos, chunk, 0, chunkLen - chunkPos);
+	    chunkLen -= chunkPos;
+	    chunkPos = 0;
+	}
+	// a line longer than the chunk
+	if (chunkLen == chunk.length) chunk = Arrays.copyOf(chunk, 2*chunk.length);
+	if (channel == null) open();
+	int m = channel.read(ByteBuffer.wrap(chunk, chunkLen, chunk.length - chunkLen), pos + chunkLen);
+	if (m <= 0) return false;
+	chunkLen += m;
+	return true;
+    }
+
+    private void open() throws IOException {
+	channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    /** Closes the file. If more arrivals are needed after all, it is
+	opened again. */
+    void close() throws IOException {
+	if (channel == null) return;
+	try {
+	    channel.close();
+	} finally {
+	    channel = null;
+	}
+    }
+
+    /** Creates a new reader of the same file, to be read from the
+	beginning independently of this one, with the file open */
+    ArrivalStream restart() throws IOException {
+	ArrivalStream s = new ArrivalStream(file, L);
+	s.length = length;
+	s.open();
+	return s;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+	in.defaultReadObject();
+	if (!file.exists()) throw new InvalidObjectException("Arrival schedule file " + file + " does not exist anymore");
+	if (file.length() != length) throw new InvalidObjectException("Arrival schedule file " + file + " has changed since the checkpoint was saved");
+	open();
+    }
+}
@@ -0,0 +1,84 @@
+package qsim;
+
+import java.io.*;
+import java.nio.file.*;
+
+/** Periodically saves the complete state of a simulation run (the
+    simulator with all its lanes, customers, counters, the policy
+    state, and the random number generators) into a file, so that a
+    long run that has been interrupted can be resumed from the last
+    checkpoint. A resumed run produces exactly the same results as an
+    uninterrupted one.
+
+    <p>The state is saved with Java serialization. To make sure that a
+    crash while writing does not destroy the previous checkpoint, the
+    data are first written to a temporary file, which then replaces
+    the checkpoint file.
+ */
+class Checkpoint {
+
+    /** The checkpoint file */
+    final File file;
+    /** How often (in msec of wall clock time) to save the state */
+    final long intervalMsec;
+    private long lastSaveMsec;
+
+    Checkpoint(File _file, long _intervalMsec) {
+	file = _file;
+	intervalMsec = _intervalMsec;
+	lastSaveMsec = System.currentTimeMillis();
+    }
+
+    /** Is it time to save the state again? */
+    boolean isDue() {
+	return System.currentTimeMillis() - lastSaveMsec >= intervalMsec;
+    }
+
+    /** Saves the state of the simulator.
+	@param complete True if the run has been completed. Resuming a completed
+	run means just reading its final state.
+     */
+    void save(Qsim qsim, boolean complete) throws IOException {
+	long msec0 = System.currentTimeMillis();
+	File tmp = new File(file.getPath() + ".tmp");
+	ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1<<16));
+	try {
+	    out.writeBoolean(complete);
+	    out.writeObject(qsim);
+	} finally {
+	    out.close();
+	}
+	Path src = tmp.toPath(), dest = file.toPath();
+	try {
+	    Files.move(src, dest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	} catch(AtomicMoveNotSupportedException ex) {
+	    Files.move(src, dest, StandardCopyOption.REPLACE_EXISTING);
+	}
+	lastSaveMsec = System.currentTimeMillis();
+	System.out.println("Saved checkpoint at t=" + qsim.getNow() + (complete? " (run complete)" : "") + " to " + file + " in " + (lastSaveMsec-msec0) + " msec");
+    }
+
+    /** The simulation state read from a checkpoint file */
+    static class State {
+	final Qsim qsim;
+	final boolean complete;
+	State(Qsim _qsim, boolean _complete) {
+	    qsim = _qsim;
+	    complete = _complete;
+	}
+    }
+
+    /** Reads a checkpoint file */
+    static State load(File f) throws IOException {
+	ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(f), 1<<16));
+	try {
+	    boolean complete = in.readBoolean();
+	    Qsim qsim = (Qsim)in.readObject();
+	    return new State(qsim, complete);
+	} catch(ClassNotFoundException ex) {
+	    throw new IOException("Cannot read checkpoint file " + f + ": " + ex);
+	} finally {
+	    in.close();
+	}
+    }
+}
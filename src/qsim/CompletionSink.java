@@ -0,0 +1,182 @@
+package qsim;
+
+import java.io.*;
+import java.text.*;
+
+/** Receives each customer whose screening has been completed. The
+    simulator does not need these records itself (the counts it reports
+    are kept separately, in {@link Queue}), so, unless something is to
+    be done with them, they are simply discarded, and the memory used by
+    the simulator does not grow with the number of customers screened.
+
+    <p>The sink to use is selected by the configuration parameter
+    "completed" (see {@link Parameters.Completed}). Sinks are saved
+    in checkpoints along with the rest of the simulator.
+ */
+abstract class CompletionSink implements Serializable {
+
+    /** A customer whose screening has been completed. Each lane reuses
+	the same record for all its customers, so a sink must copy
+	whatever it wants to keep. */
+    static class Record implements Serializable {
+	/** The lane (0-based) where the customer has been screened */
+	int lane;
+	long arrivalTime, screenStartTime, completionTime;
+	boolean threat, detected, transferred;
+	/** The position of the screener profile used in the lane's list
+	    of profiles, and in the configuration's list of all profiles */
+	int spID, profile;
+    }
+
+    /** Is called when a customer's screening is completed.
+	@param r The customer; only valid during the call
+     */
+    abstract void completed(Record r);
+
+    /** Is called at the end of the run */
+    void close() throws IOException {}
+
+    /** Is called when the run is resumed from a checkpoint */
+    void resume() throws IOException {}
+
+    /** A description of what has been collected, to be printed at the
+	end of the run; null if there is nothing to report */
+    String report() { return null; }
+
+    /** Creates a sink as specified by para.completed.
+	@param traceFile The file to write the trace to, if one is needed
+     */
+    static CompletionSink create(Parameters para, File traceFile) throws IOException {
+	switch(para.completed) {
+	case TRACE: return new Trace(traceFile);
+	case STATS: return new Stats(para);
+	default: return new Discard();
+	}
+    }
+
+    /** Forgets all completed customers */
+    static class Discard extends CompletionSink {
+	void completed(Record r) {}
+    }
+
+    /** Writes one line per completed customer to a trace file, as
+	the simulation goes */
+    static class Trace extends CompletionSink {
+	private final ResumableWriter out;
+	Trace(File f) throws IOException {
+	    out = new ResumableWriter(f);
+	    out.println("#lane\tarrival\tscreenStart\tcompleted\tthreat\tdetected\ttransferred\tprofile");
+	}
+	void completed(Record r) {
+	    if (!out.isOpen()) return; // a copy of the simulator
+	    out.println("" + (r.lane+1) + "\t" + r.arrivalTime + "\t" + r.screenStartTime + "\t" + r.completionTime + "\t" +
+			(r.threat? 1:0) + "\t" + (r.detected? 1:0) + "\t" + (r.transferred? 1:0) + "\t" + (r.spID+1));
+	}
+	void close() throws IOException {
+	    out.close();
+	}
+	void resume() throws IOException {
+	    out.resume();
+	}
+    }
+
+    /** Accumulates the statistics of the waiting, screening, and total
+	times of the completed customers, and the number of customers
+	screened in each lane. The distributions of the waiting time
+	and the time in system (from arrival to the completion of
+	screening) are summarized by quantile sketches, for each lane
+	and for each screener profile; these can be merged over all
+	runs of a job ({@link #merge(Stats)}).
+     */
+    static class Stats extends CompletionSink {
+	final OnlineStats wait = new OnlineStats(), screening = new OnlineStats(),
+	    total = new OnlineStats();
+	final long[] laneCnt;
+	long transferredCnt = 0;
+	/** All profiles in the configuration */
+	private final ScreenerProfile[] profiles;
+	/** Sketches of the waiting time and the time in system, by lane
+	    and by profile */
+	final QuantileSketch[] waitByLane, totalByLane, waitByProfile, totalByProfile;
+
+	Stats(Parameters para) {
+	    laneCnt = new long[para.L];
+	    profiles = para.profiles;
+	    waitByLane = newSketches(para.L);
+	    totalByLane = newSketches(para.L);
+	    waitByProfile = newSketches(profiles.length);
+	    totalByProfile = newSketches(profiles.length);
+	}
+
+	private static QuantileSketch[] newSketches(int n) {
+	    QuantileSketch[] z = new QuantileSketch[n];
+	    for(int i=0; i<n; i++) z[i] = new QuantileSketch();
+	    return z;
+	}
+
+	void completed(Record r) {
+	    long w = r.screenStartTime - r.arrivalTime, t = r.completionTime - r.arrivalTime;
+	    wait.add(w);
+	    screening.add(r.completionTime - r.screenStartTime);
+	    total.add(t);
+	    laneCnt[r.lane]++;
+	    if (r.transferred) transferredCnt++;
+	    waitByLane[r.lane].add(w);
+	    totalByLane[r.lane].add(t);
+	    waitByProfile[r.profile].add(w);
+	    totalByProfile[r.profile].add(t);
+	}
+
+	/** Adds the data of another run (with the same configuration) to
+	    this one's. Only the counts and the quantile sketches are
+	    merged. */
+	void merge(Stats o) {
+	    for(int j=0; j<laneCnt.length; j++) {
+		laneCnt[j] += o.laneCnt[j];
+		waitByLane[j].merge(o.waitByLane[j]);
+		totalByLane[j].merge(o.totalByLane[j]);
+	    }
+	    for(int j=0; j<profiles.length; j++) {
+		waitByProfile[j].merge(o.waitByProfile[j]);
+		totalByProfile[j].merge(o.totalByProfile[j]);
+	    }
+	    transferredCnt += o.transferredCnt;
+	}
+
+	String report() {
+	    NumberFormat fmt = new DecimalFormat("0.00");
+	    StringBuffer b = new StringBuffer();
+	    b.append("Completed customers: " + total.count() + " (transferred: " + transferredCnt + "); by lane:");
+	    for(int j=0; j<laneCnt.length; j++) b.append(" " + (j+1) + ":" + laneCnt[j]);
+	    b.append("\n");
+	    b.append("  waiting time: mean " + fmt.format(wait.mean()) + ", std dev " + fmt.format(Math.sqrt(wait.variance())) + "\n");
+	    b.append("  screening time: mean " + fmt.format(screening.mean()) + ", std dev " + fmt.format(Math.sqrt(screening.variance())) + "\n");
+	    b.append("  time in system: mean " + fmt.format(total.mean()) + ", std dev " + fmt.format(Math.sqrt(total.variance())) + "\n");
+	    b.append(percentileReport());
+	    return b.toString();
+	}
+
+	/** The percentiles of the waiting time and of the time in system,
+	    over all lanes, and by lane and profile */
+	String percentileReport() {
+	    StringBuffer b = new StringBuffer();
+	    b.append("  waiting time percentiles: " + merged(waitByLane) + "\n");
+	    b.append("  time in system percentiles: " + merged(totalByLane));
+	    for(int j=0; j<laneCnt.length; j++) {
+		b.append("\n    lane " + (j+1) + ": waiting " + waitByLane[j] + "; in system " + totalByLane[j]);
+	    }
+	    for(int j=0; j<profiles.length; j++) {
+		if (waitByProfile[j].count()==0) continue;
+		b.append("\n    profile p" + (j+1) + " (d=" + profiles[j].d + "): waiting " + waitByProfile[j] + "; in system " + totalByProfile[j]);
+	    }
+	    return b.toString();
+	}
+
+	/** Merges the sketches of all lanes */
+	static QuantileSketch merged(QuantileSketch[] a) {
+	    QuantileSketch z = new QuantileSketch();
+	    for(QuantileSketch q: a) z.merge(q);
+	    return z;
+	}
+    }
+}
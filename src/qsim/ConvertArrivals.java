@@ -0,0 +1,81 @@
+package qsim;
+
+import java.io.*;
+import java.util.*;
+
+/** An auxiliary application for converting arrival schedule files
+    between the text format (as produced by {@link GenerateArrivals})
+    and the binary format, which loads much faster (see {@link
+    StaticArrivalSchedule}). Each file is converted into the other
+    format. The simulators accept files in either format.
+*/
+public class ConvertArrivals {
+
+    static void usage() {
+	usage(null);
+    }
+
+    static void usage(String m) {
+	System.out.println("Usage: java [options] qsim.ConvertArrivals input output");
+	System.out.println("The input is an arrival schedule file (text or binary), which is converted into the other format;");
+	System.out.println("or a directory of such files (arrivals-000.dat etc.), which are all converted into the output directory");
+	System.out.println("Options:");
+	System.out.println(" [-DL=0] -- the number of lanes (for text files; 0 means the highest lane number in the file)");
+	if (m!=null) {
+	    System.out.println(m);
+	}
+	System.exit(1);
+    }
+
+    /** The highest lane number in a text schedule file */
+    static int maxLane(File f) throws IOException {
+	int L = 0;
+	LineNumberReader r = new LineNumberReader( new FileReader(f));
+	String s=null;
+	while((s = r.readLine())!=null) {
+	    s = s.trim();
+	    if (s.startsWith("#")) continue;
+	    String q[] = s.split("\\s+");
+	    if (q.length<2) continue; // the reader will complain
+	    L = Math.max(L, Integer.parseInt(q[1]));
+	}
+	r.close();
+	return L;
+    }
+
+    /** Converts one file
+	@param L The number of lanes; 0 means, as many as there are in the file
+     */
+    static void convert(File in, File out, int L) throws IOException, Parameters.ParseException {
+	boolean binary = StaticArrivalSchedule.isBinary(in);
+	if (L <= 0) L = binary? StaticArrivalSchedule.laneCount(in) : maxLane(in);
+	StaticArrivalSchedule[] ss = StaticArrivalSchedule.readFile(in, L);
+	if (binary) {
+	    StaticArrivalSchedule.writeText(ss, out);
+	} else {
+	    StaticArrivalSchedule.writeBinary(ss, out);
+	}
+	System.out.println("Converted " + (binary? "binary" : "text") + " file " + in + " to " + (binary? "text" : "binary") + " file " + out);
+    }
+
+    static public void main(String argv[]) throws IOException, Parameters.ParseException {
+	Options.setInteractive(false);
+	ParseConfig ht = new ParseConfig();
+	int L = ht.getOption("L", 0);
+
+	if (argv.length != 2) usage();
+	File in = new File(argv[0]), out = new File(argv[1]);
+	if (!in.exists()) usage("File " + in + " does not exist!");
+
+	if (in.isDirectory()) {
+	    Qsim.checkOutDir(out);
+	    int k=0;
+	    for(; GenerateArrivals.arrivalFile(in,k).exists(); k++) {
+		convert(GenerateArrivals.arrivalFile(in,k), GenerateArrivals.arrivalFile(out,k), L);
+	    }
+	    if (k==0) usage("Directory " + in + " contains no arrival schedules");
+	} else {
+	    convert(in, out, L);
+	}
+    }
+}
@@ -0,0 +1,132 @@
+package qsim;
+
+import java.io.*;
+
+/** The crowd size history of a simulation run: a sequence of (t,
+    crowd_size) samples, one per distinct event time, in chronological
+    order.
+
+    <p>By default, the entire history is kept in memory, and is written
+    out at the end of the run. This is what the GUI uses. For long
+    batch runs, the history can instead be written to the log file as
+    the simulation goes ({@link #startStreaming(File, int)}), in the same
+    format; then only a fixed number of the most recent samples (which
+    may be zero) are kept in memory.
+
+    <p>A streaming log can be saved in a checkpoint; the position in
+    the log file is saved along with it, so that a resumed run can
+    truncate the file to that position and carry on appending to it.
+ */
+class CrowdLog implements Serializable {
+
+    /** The samples kept in memory: all of them, or, when streaming, the
+	most recent ones */
+    private TimeSeries tail = new TimeSeries();
+    /** When streaming, how many samples to keep in memory */
+    private int tailSize = 0;
+
+    /** The log file being written (null if not streaming) */
+    private ResumableWriter out = null;
+    /** Has the log file been completed and closed? */
+    private boolean finished = false;
+
+    /** The most recent sample, which has not been written to the file
+	yet, because it may still be updated by another event at the same
+	time */
+    private long lastT, lastC;
+    private boolean hasPending = false;
+    /** Is the most recent sample in the tail? */
+    private boolean pendingInTail = false;
+
+    /** Starts writing the log to the specified file, rather than keeping it
+	in memory. Any samples accumulated in memory so far are written
+	out first.
+	@param _tailSize How many of the most recent samples to keep in memory
+     */
+    synchronized void startStreaming(File f, int _tailSize) throws IOException {
+	out = new ResumableWriter(f);
+	tailSize = _tailSize;
+	TimeSeries.View v = tail.view();
+	int n = v.end() - (pendingInTail? 1 : 0);
+	for(int i=v.first(); i<n; i++) write(v.t(i), v.value(i));
+	tail.trim(tailSize);
+    }
+
+    /** Is the log being written to the file now? (A copy of a simulator
+	that streams its log keeps its log in memory) */
+    private boolean streaming() {
+	return out != null && out.isOpen();
+    }
+
+    private void write(long t, long c) {
+	out.println("" + t + " " + c);
+    }
+
+    /** Continues writing a streaming log after the run has been resumed
+	from a checkpoint. The log file is truncated to the length it had
+	when the checkpoint was saved. */
+    synchronized void resume() throws IOException {
+	if (out == null || finished) return;
+	out.resume();
+    }
+
+    /** Records the crowd size c at time t. If there already is a sample
+	for time t, it is updated.
+     */
+    void add(long t, long c) {
+	if (hasPending && lastT==t) {
+	    lastC = c;
+	    if (pendingInTail) tail.setLastValue(c);
+	    return;
+	}
+	boolean streaming = streaming();
+	if (hasPending && streaming) write(lastT, lastC);
+	lastT = t;
+	lastC = c;
+	hasPending = true;
+	pendingInTail = (!streaming || tailSize > 0);
+	if (pendingInTail) {
+	    tail.add(t, c);
+	    if (streaming) tail.trim(tailSize);
+	}
+    }
+
+    /** The samples kept in memory (all of them, unless streaming) */
+    TimeSeries getTail() {
+	return tail;
+    }
+
+    /** A new log, kept in memory, which starts with the most recent
+	sample of this one. This is the log given to the copies of the
+	simulator made for a forecast, which don't need the history. */
+    synchronized CrowdLog current() {
+	CrowdLog c = new CrowdLog();
+	if (hasPending) c.add(lastT, lastC);
+	return c;
+    }
+
+    /** Completes the log file.
+	@param f The file to write. If the log is being streamed to this
+	file, it is completed; otherwise, all samples in memory are
+	written to it.
+	@param trailer The last line of the file
+     */
+    synchronized void save(File f, String trailer) throws IOException {
+	if (out != null && f.equals(out.file)) {
+	    if (finished) return;
+	    if (!out.isOpen()) throw new IOException("Log file " + f + " is not open");
+	    if (hasPending) write(lastT, lastC);
+	    out.println(trailer);
+	    out.close();
+	    finished = true;
+	    return;
+	}
+	PrintWriter pw = new PrintWriter(new FileWriter(f));
+	TimeSeries.View v = tail.view();
+	for(int i=v.first(); i<v.end(); i++) {
+	    pw.println("" + v.t(i) + " " + v.value(i));
+	}
+	pw.println(trailer);
+	pw.close();
+    }
+}
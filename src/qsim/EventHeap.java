@@ -0,0 +1,117 @@
+package qsim;
+
+import java.util.*;
+
+/** An indexed binary min-heap of lanes, keyed by the time of each
+    lane's next scheduled activity (the arrival of the pending
+    customer, or the completion of the current screening). It is used
+    by the event-list simulation engine in {@link Qsim} to find the
+    lanes that need attention at the next event time without scanning
+    all lanes.
+
+    <p>Each lane appears in the heap at most once. Ties in time are
+    broken by the lane number, so lanes with simultaneous events come
+    out of the heap in the lane order, which is the order in which the
+    original (scanning) loop has always visited them.
+ */
+class EventHeap {
+
+    /** heap[0..size-1] are lane numbers, in heap order */
+    private final int[] heap;
+    /** pos[j] is the position of Lane j in heap[], or -1 if Lane j
+	has no scheduled activity */
+    private final int[] pos;
+    /** key[j] is the time of Lane j's next scheduled activity */
+    private final long[] key;
+    private int size = 0;
+
+    EventHeap(int L) {
+	heap = new int[L];
+	pos = new int[L];
+	key = new long[L];
+	Arrays.fill(pos, -1);
+    }
+
+    boolean isEmpty() { return size==0; }
+
+    /** @return The time of the earliest scheduled activity, or Queue.NEVER if none is scheduled */
+    long minTime() {
+	return size==0 ? Queue.NEVER : key[heap[0]];
+    }
+
+    /** Removes the lane with the earliest scheduled activity from the heap.
+	@return the lane number
+     */
+    int poll() {
+	if (size==0) throw new NoSuchElementException("Event heap is empty");
+	int j = heap[0];
+	remove(j);
+	return j;
+    }
+
+    /** Schedules the next activity of Lane j at time t, replacing
+	any previously scheduled time.
+	@param t The time of the activity, or Queue.NEVER to remove Lane j from the heap
+    */
+    void set(int j, long t) {
+	if (t == Queue.NEVER) {
+	    if (pos[j]>=0) remove(j);
+	    return;
+	}
+	if (pos[j] < 0) {
+	    key[j] = t;
+	    pos[j] = size;
+	    heap[size++] = j;
+	    siftUp(pos[j]);
+	} else {
+	    long old = key[j];
+	    key[j] = t;
+	    if (t < old) siftUp(pos[j]);
+	    else siftDown(pos[j]);
+	}
+    }
+
+    private void remove(int j) {
+	int i = pos[j];
+	int last = heap[--size];
+	pos[j] = -1;
+	if (last == j) return;
+	heap[i] = last;
+	pos[last] = i;
+	siftUp(i);
+	siftDown(pos[last]);
+    }
+
+    /** Does Lane a come before Lane b? */
+    private boolean less(int a, int b) {
+	return key[a] < key[b] || (key[a]==key[b] && a < b);
+    }
+
+    private void siftUp(int i) {
+	int j = heap[i];
+	while(i>0) {
+	    int p = (i-1)/2;
+	    if (!less(j, heap[p])) break;
+	    heap[i] = heap[p];
+	    pos[heap[i]] = i;
+	    i = p;
+	}
+	heap[i] = j;
+	pos[j] = i;
+    }
+
+    private void siftDown(int i) {
+	int j = heap[i];
+	while(true) {
+	    int c = 2*i+1;
+	    if (c >= size) break;
+	    if (c+1 < size && less(heap[c+1], heap[c])) c++;
+	    if (!less(heap[c], j)) break;
+	    heap[i] = heap[c];
+	    pos[heap[i]] = i;
+	    i = c;
+	}
+	heap[i] = j;
+	pos[j] = i;
+    }
+}
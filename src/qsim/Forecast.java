@@ -0,0 +1,174 @@
+package qsim;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** A "what-if" forecast of the crowd size, made from the current
+    state of a running simulation. The state of the simulator is copied
+    (at a safe point of its main loop, so the interactive simulation is
+    only paused for the time it takes to copy it; the copy leaves out
+    the crowd size history and the completed customers, so that this
+    time does not grow with the length of the run), optionally with some
+    lanes broken or fixed, and the copy is run forward several times,
+    each time with different random numbers, as fast as possible on
+    background threads. The result is a band of crowd size
+    percentiles over time, which the GUI overlays on its crowd size
+    chart.
+ */
+public class Forecast {
+
+    /** Is notified when the forecast is ready. The methods are called from
+	a background thread. */
+    public interface Listener {
+	void forecastDone(Forecast f);
+	void forecastFailed(Exception ex);
+    }
+
+    /** The percentiles computed by the forecast */
+    public static final double[] levels = {0.1, 0.5, 0.9};
+    /** The number of time points at which the percentiles are computed */
+    static final int M = 200;
+
+    /** The simulated time at which the forecast starts */
+    public final long t0;
+    /** How far ahead the forecast looks */
+    public final long horizon;
+    /** The number of simulated futures */
+    public final int n;
+    /** The lane status assumed in the forecast; null means, as in the
+	simulation */
+    private final boolean[] broken;
+    /** The serialized simulator state, as per {@link Qsim#snapshot()} */
+    private final byte[] state;
+    /** band[i][m] is the levels[i]-th percentile of the crowd size at time(m) */
+    private final double[][] band = new double[levels.length][M+1];
+
+    private Forecast(Qsim base, boolean[] _broken, int _n, long _horizon) throws IOException {
+	t0 = base.getNow();
+	horizon = _horizon;
+	n = _n;
+	broken = _broken;
+	state = base.snapshot();
+    }
+
+    /** The number of time points */
+    public int points() { return M+1; }
+    /** The m-th time point */
+    public long time(int m) { return t0 + (horizon * m)/M; }
+    /** The levels[i]-th percentile of the crowd size at time(m) */
+    public double percentile(int i, int m) { return band[i][m]; }
+
+    /** Starts a forecast. The state of the simulator is copied at its next
+	safe point; the forecast runs are then carried out on a pool of
+	background threads, and the listener is notified when they are done.
+	@param base The simulator, which may be running
+	@param broken The lane status to assume; null means, the same as
+	in the simulator
+	@param n The number of simulated futures
+	@param horizon How far ahead (in simulated time) to look
+     */
+    public static void start(final Qsim base, final boolean[] broken, final int n, final long horizon, final Listener listener) {
+	base.runAtSafePoint(new Runnable() {
+		public void run() {
+		    final Forecast f;
+		    try {
+			f = new Forecast(base, broken, n, horizon);
+		    } catch(IOException ex) {
+			listener.forecastFailed(ex);
+			return;
+		    }
+		    Thread t = new Thread("forecast") {
+			    public void run() {
+				try {
+				    f.compute();
+				    listener.forecastDone(f);
+				} catch(Exception ex) {
+				    listener.forecastFailed(ex);
+				}
+			    }
+			};
+		    t.setDaemon(true);
+		    t.start();
+		}
+	    });
+    }
+
+    /** Carries out all runs, and computes the percentiles */
+    private void compute() throws IOException {
+	int threads = Math.max(1, Runtime.getRuntime().availableProcessors()-1);
+	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	final long seed = System.nanoTime();
+	double[][] crowd = new double[M+1][n];
+	try {
+	    Vector<Future<long[]>> futures = new Vector<Future<long[]>>();
+	    for(int k=0; k<n; k++) {
+		final long s = Replication.runSeed(seed, k);
+		futures.add(pool.submit(new Callable<long[]>() {
+			public long[] call() throws IOException {
+			    return runOne(s);
+			}
+		    }));
+	    }
+	    for(int k=0; k<n; k++) {
+		long[] z;
+		try {
+		    z = futures.elementAt(k).get();
+		} catch(InterruptedException ex) {
+		    throw new InterruptedIOException("Forecast interrupted");
+		} catch(ExecutionException ex) {
+		    throw new IOException("Forecast run failed", ex.getCause());
+		}
+		for(int m=0; m<=M; m++) crowd[m][k] = z[m];
+	    }
+	} finally {
+	    pool.shutdownNow();
+	}
+	for(int m=0; m<=M; m++) {
+	    Arrays.sort(crowd[m]);
+	    for(int i=0; i<levels.length; i++) {
+		int r = (int)Math.round(levels[i] * (n-1));
+		band[i][m] = crowd[m][r];
+	    }
+	}
+    }
+
+    /** Makes a copy of the simulator, with new random numbers, runs it
+	over the forecast horizon, and samples its crowd size.
+	@return the crowd size at each time point
+     */
+    private long[] runOne(long seed) throws IOException {
+	Qsim q;
+	ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(state));
+	try {
+	    q = (Qsim)in.readObject();
+	} catch(ClassNotFoundException ex) {
+	    throw new IOException(ex);
+	} finally {
+	    in.close();
+	}
+	q.reseed(new RandomStreams(seed, q.streams.crn, false, q.streams.rng));
+	if (broken != null) {
+	    for(int j=0; j<q.L && j<broken.length; j++) q.lanes[j].setBroken(broken[j]);
+	}
+	q.setHeadless(true);
+	q.setQuiet(true);
+	q.setFullSpeed(true);
+	try {
+	    q.simulate(t0 + horizon);
+	} finally {
+	    q.closeArrivals();
+	}
+
+	// The crowd size at time t is given by the last sample with a
+	// time not after t
+	TimeSeries.View log = q.getLogData().view();
+	long[] z = new long[M+1];
+	for(int m=0; m<=M; m++) {
+	    int p = log.find(time(m));
+	    if (p < log.first()) p = log.first();
+	    z[m] = log.isEmpty()? 0 : log.value(p);
+	}
+	return z;
+    }
+}
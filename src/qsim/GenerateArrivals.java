@@ -2,10 +2,27 @@ package qsim;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.text.*;
 
 /** An auxiliary application for generating arrival schedules, for use
     in Qsim runs.
+
+    <p>By default, as in the original version, all the schedules come
+    from a single random number generator: the schedule of run 1
+    continues where run 0 has left off, and, within each run, lane 2
+    where lane 1 has left off. Thus the schedules can only be produced
+    one at a time, and each one has to be held in memory until all of
+    its lanes have been generated, to be merged in chronological order.
+
+    <p>With -Dcrn=true, each run has its own seed, derived from the
+    user-supplied seed and the run number as for the simulator's runs
+    (see {@link Replication#runSeed(long, int)}), and each lane has its
+    own generators (see {@link ArrivalGenerator}). The runs are then
+    independent of each other, and are produced in parallel
+    (-Dthreads); the lanes are merged as they go, so only the next
+    customer of each lane is held in memory. The results don't depend
+    on the number of threads.
 */
 public class GenerateArrivals {
 
@@ -19,6 +36,8 @@ public class GenerateArrivals {
 	System.out.println(" [-Dseed=0] -- seed for the random number generator");
 	//	System.out.println(" [-Dspeed=100] -- simulation speed (units of sim time per real-clock second). (0 means run fast)");
 	System.out.println(" [-Druns=1] -- number of simulation runs for which arrival files are to be produced");
+	System.out.println(" [-Dcrn=false] -- separate random number generators for each run and lane, as in the simulator's CRN mode");
+	System.out.println(" [-Dthreads=1] -- with -Dcrn=true, the number of files to produce at the same time. The results don't depend on it");
 
 	if (m!=null) {
 	    System.out.println(m);
@@ -36,6 +55,52 @@ public class GenerateArrivals {
 	return new File(dir, "arrivals-"+ nf.format(k)+".dat");
     }
 
+    /** Writes the comment lines at the beginning of a schedule file */
+    static void writeHeader(ScheduleWriter w, Parameters para) throws IOException {
+	w.println("# This file contains customer arrival times. Each line is inb the format");
+	w.println("# t j threat");
+	w.println("# Where t is the time, j is the (1-based) lane number, threat=0 or 1");
+	w.println("# The data are for L="+para.L+" lanes, with " + para.nGenMax + " customers in each one");
+    }
+
+    /** Generates the arrival schedule for one run, with separate
+	generators for each lane (see {@link ArrivalGenerator}), and
+	writes it into a file. The lanes' customers are merged in
+	chronological order (ties broken by the lane number) as they
+	are generated.
+	@param seed The run's seed
+    */
+    static void generate(Parameters para, long seed, File f) throws IOException {
+	if (para.nGenMax <= 0) throw new IllegalArgumentException("Needs to specify the number of customers (nGenMax) in the config file!");
+	final int L = para.L;
+	RandomStreams streams = new RandomStreams(seed, true, false, para.rng);
+	ArrivalGenerator[] gen = new ArrivalGenerator[L];
+	// the next customer of each lane, packed
+	long[] next = new long[L];
+	// the lanes, keyed by the time of their next customer
+	EventHeap h = new EventHeap(L);
+	for(int j=0; j<L; j++) {
+	    gen[j] = new ArrivalGenerator(para, streams, j);
+	    next[j] = gen[j].next();
+	    h.set(j, StaticArrivalSchedule.time(next[j]));
+	}
+	ScheduleWriter w = new ScheduleWriter(f);
+	try {
+	    writeHeader(w, para);
+	    while(!h.isEmpty()) {
+		int j = h.poll();
+		long b = next[j];
+		w.arrival(StaticArrivalSchedule.time(b), j+1, StaticArrivalSchedule.threat(b));
+		if (gen[j].hasNext()) {
+		    next[j] = gen[j].next();
+		    h.set(j, StaticArrivalSchedule.time(next[j]));
+		}
+	    }
+	} finally {
+	    w.close();
+	}
+    }
+
     static public void main(String argv[]) throws IOException {
 	Options.setInteractive(false);
 	System.out.println("Arrival Generator for Qsim ver. " + Qsim.version);
@@ -58,20 +123,49 @@ public class GenerateArrivals {
 	
 	// The seed for the random number generator. 
 	long seed = ht.getOptionLong("seed", 0);
-	Qsim.gen = new Random(seed);
 
 	int runs = ht.getOption("runs", 1);
 	if (runs < 1) usage();
+	boolean crn = ht.getOption("crn", false);
+	int threads = ht.getOption("threads", 1);
+	if (threads < 1) usage("The number of threads must be positive");
+	if (threads > 1 && !crn) usage("The schedules can only be produced in parallel with separate random number generators for each run (-Dcrn=true)");
+
+	System.out.println("Will produce  " + runs + " arrival schedule files (one per simulation run)" +
+			   (threads>1? ", up to " + threads + " at a time." : "."));
+
+	if (!crn) {
+	    long now = 0;
+	    Qsim qsim = new Qsim(para, now, null, new RandomStreams(seed, false, false, para.rng));
+
+	    for(int k=0; k<runs; k++) {
+		f = arrivalFile(g,k);
+		System.out.println("Saving arrival schedule file " + f);
+		qsim.generateArrivalSchedule(f);
+	    }
+	    return;
+	}
 
-	System.out.println("Will produce  " + runs + " arrival schedule files (one per simulation run).");
-
-	long now = 0;
-	Qsim qsim = new Qsim(para, now, null);
-
+	final Parameters _para = para;
+	Vector<Callable<File>> tasks = new Vector<Callable<File>>();
 	for(int k=0; k<runs; k++) {
-	    f = arrivalFile(g,k);
-	    System.out.println("Saving arrival schedule file " + f);
-	    qsim.generateArrivalSchedule(f);
+	    final long runSeed = Replication.runSeed(seed, k);
+	    final File _f = arrivalFile(g,k);
+	    tasks.add(new Callable<File>() {
+		    public File call() throws IOException {
+			System.out.println("Saving arrival schedule file " + _f);
+			generate(_para, runSeed, _f);
+			return _f;
+		    }
+		});
+	}
+	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	try {
+	    Vector<Future<File>> futures = new Vector<Future<File>>();
+	    for(Callable<File> t: tasks) futures.add(pool.submit(t));
+	    for(Future<File> fu: futures) Replication.waitFor(fu);
+	} finally {
+	    pool.shutdownNow();
 	}
 
     }
@@ -0,0 +1,223 @@
+package qsim;
+
+import java.io.*;
+
+/** An order-statistics index of the working (non-broken) lanes, by
+    queue length, used by policies P2 and P3 to find out whether a
+    lane is among the ones with the shortest queues. The lanes are
+    ranked as they would be by a stable sort of the working lanes by
+    Queue.queueLength(): by queue length, ties being broken by lane
+    number.
+
+    <p>The index is a treap, whose nodes are the lanes themselves
+    (stored in arrays indexed by lane number), ordered by (key, lane
+    number), where the key is Queue.queueLengthKey(). It is updated
+    (in O(log L) time, and without creating any objects) whenever a
+    lane's queue length or broken status changes. If the queue length
+    is an integer (policy.countCurrentlyScreened=YES or NO), it is the
+    key itself, and the rank of a lane is found in O(log L) time.
+
+    <p>The PARTIALLY mode does not have this bound. There, the queue
+    length of a lane changes with time while a customer is being
+    screened, at a rate that depends on the lane's current profile, so
+    the order of the lanes by queue length changes between updates,
+    and no key that stays fixed between updates gives it. The key only
+    brackets the queue length, which always stays within [key-1,
+    key]; so the lanes with keys more than 1 away from the given lane's
+    queue length are counted in O(log L) time, but those within 1 of
+    it have their actual queue lengths compared with it, one by one.
+    When most lanes have queues of about the same length, this is
+    O(L), as the sort used to be, although without the sorting and
+    the memory allocation.
+ */
+class LaneRank implements Serializable {
+
+    private final Queue[] lanes;
+    /** Are the queue lengths always equal to the keys? */
+    private final boolean exact;
+
+    /** The key of each lane, as of its insertion into the treap */
+    private final int[] key;
+    /** The treap: children, subtree sizes, and priorities */
+    private final int[] left, right, size, prio;
+    /** Which lanes are in the treap (i.e. are working) */
+    private final boolean[] present;
+    private int root = -1;
+
+    LaneRank(Queue[] _lanes) {
+	lanes = _lanes;
+	final int L = lanes.length;
+	exact = (L==0 || lanes[0].para.countCurrentlyScreened != Parameters.CountCurrentlyScreened.PARTIALLY);
+	key = new int[L];
+	left = new int[L];
+	right = new int[L];
+	size = new int[L];
+	prio = new int[L];
+	present = new boolean[L];
+	for(int i=0; i<L; i++) {
+	    prio[i] = priority(i);
+	    update(lanes[i]);
+	}
+    }
+
+    /** The treap priorities are a fixed hash of the lane number, so
+	that the index does not use the simulation's random numbers */
+    private static int priority(int i) {
+	int h = (i+1) * 0x9E3779B9;
+	h ^= h >>> 15;
+	h *= 0x85EBCA6B;
+	h ^= h >>> 13;
+	return h;
+    }
+
+    /** Brings the lane's entry up to date. Is called whenever the
+	lane's queue length or broken status changes. */
+    void update(Queue q) {
+	int i = q.mypos;
+	boolean working = !q.isBroken();
+	int k = q.queueLengthKey();
+	if (present[i]) {
+	    if (working && key[i]==k) return;
+	    root = remove(root, i);
+	}
+	present[i] = working;
+	if (!working) return;
+	key[i] = k;
+	left[i] = right[i] = -1;
+	size[i] = 1;
+	root = insert(root, i);
+    }
+
+    /** The number of working lanes */
+    int count() {
+	return sz(root);
+    }
+
+    /** The number of working lanes that come before the (working)
+	lane m when the working lanes are ranked by queue length. Takes
+	O(log L) time, except in the PARTIALLY mode (see above). */
+    int rank(int m) {
+	if (exact) return rankOf(m);
+	double x = lanes[m].queueLength();
+	int lo = (int)Math.ceil(x), hi = (int)Math.floor(x) + 1;
+	// the keys below lo are below x, and so are the queue lengths;
+	// the queue lengths of the lanes with keys above hi exceed x
+	return countBelow(lo) + countShorter(root, lo, hi, x, m);
+    }
+
+    private int sz(int t) {
+	return t<0? 0 : size[t];
+    }
+
+    private void pull(int t) {
+	size[t] = 1 + sz(left[t]) + sz(right[t]);
+    }
+
+    /** Does lane i come before lane j in the (key, lane number) order? */
+    private boolean before(int i, int j) {
+	return key[i] < key[j] || (key[i]==key[j] && i < j);
+    }
+
+    /** The results of split() */
+    private int splitL, splitR;
+
+    /** Splits the subtree t into the nodes that come before node i
+	(splitL) and those that come after it (splitR) */
+    private void split(int t, int i) {
+	if (t<0) {
+	    splitL = splitR = -1;
+	} else if (before(t, i)) {
+	    split(right[t], i);
+	    right[t] = splitL;
+	    pull(t);
+	    splitL = t;
+	} else {
+	    split(left[t], i);
+	    left[t] = splitR;
+	    pull(t);
+	    splitR = t;
+	}
+    }
+
+    /** Merges two subtrees, all nodes of a coming before those of b */
+    private int merge(int a, int b) {
+	if (a<0) return b;
+	if (b<0) return a;
+	if (prio[a] > prio[b]) {
+	    right[a] = merge(right[a], b);
+	    pull(a);
+	    return a;
+	} else {
+	    left[b] = merge(a, left[b]);
+	    pull(b);
+	    return b;
+	}
+    }
+
+    private int insert(int t, int i) {
+	if (t<0) return i;
+	if (prio[i] > prio[t]) {
+	    split(t, i);
+	    left[i] = splitL;
+	    right[i] = splitR;
+	    pull(i);
+	    return i;
+	}
+	if (before(i, t)) left[t] = insert(left[t], i);
+	else right[t] = insert(right[t], i);
+	pull(t);
+	return t;
+    }
+
+    private int remove(int t, int i) {
+	if (t == i) return merge(left[t], right[t]);
+	if (before(i, t)) left[t] = remove(left[t], i);
+	else right[t] = remove(right[t], i);
+	pull(t);
+	return t;
+    }
+
+    /** The number of lanes before lane i in the (key, lane number) order */
+    private int rankOf(int i) {
+	int r = 0, t = root;
+	while(t >= 0) {
+	    if (t == i) return r + sz(left[t]);
+	    if (before(i, t)) {
+		t = left[t];
+	    } else {
+		r += sz(left[t]) + 1;
+		t = right[t];
+	    }
+	}
+	throw new IllegalArgumentException("Lane " + (i+1) + " is not a working lane");
+    }
+
+    /** The number of lanes with keys below k */
+    private int countBelow(int k) {
+	int r = 0, t = root;
+	while(t >= 0) {
+	    if (key[t] < k) {
+		r += sz(left[t]) + 1;
+		t = right[t];
+	    } else {
+		t = left[t];
+	    }
+	}
+	return r;
+    }
+
+    /** Among the lanes in the subtree t with keys in [lo, hi], counts
+	those whose queue is shorter than x (the queue length of lane
+	m), or as long, with a lower lane number */
+    private int countShorter(int t, int lo, int hi, double x, int m) {
+	if (t<0) return 0;
+	int c = 0;
+	if (key[t] >= lo) c += countShorter(left[t], lo, hi, x, m);
+	if (key[t] <= hi) c += countShorter(right[t], lo, hi, x, m);
+	if (key[t] >= lo && key[t] <= hi) {
+	    double y = lanes[t].queueLength();
+	    if (y < x || (y == x && t < m)) c++;
+	}
+	return c;
+    }
+}
@@ -0,0 +1,83 @@
+package qsim;
+
+/** Accumulates the mean and variance of a sequence of values, one
+    value at a time (Welford's algorithm), and computes confidence
+    intervals for the mean. Used to summarize the outputs of multiple
+    simulation runs.
+ */
+class OnlineStats implements java.io.Serializable {
+    private int n = 0;
+    private double mean = 0, m2 = 0;
+
+    void add(double x) {
+	n++;
+	double delta = x - mean;
+	mean += delta / n;
+	m2 += delta * (x - mean);
+    }
+
+    int count() { return n; }
+    double mean() { return n==0? Double.NaN : mean; }
+    /** The sample variance (with n-1 in the denominator) */
+    double variance() { return n<2? Double.NaN : m2/(n-1); }
+    /** The standard error of the mean */
+    double stdError() { return Math.sqrt(variance()/n); }
+
+    /** The half-width of the confidence interval for the mean, based
+	on Student's t distribution.
+	@param conf The confidence level, e.g. 0.95
+     */
+    double halfWidth(double conf) {
+	if (n<2) return Double.NaN;
+	return tQuantile(0.5 + conf/2, n-1) * stdError();
+    }
+
+    /** The quantile of Student's t distribution with df degrees of
+	freedom. Exact for df=1 and df=2; for larger df, the
+	Cornish-Fisher expansion around the normal quantile is used,
+	which is accurate to 3-4 significant digits for the usual
+	confidence levels.
+	@param p The probability, 0 &lt; p &lt; 1
+     */
+    static double tQuantile(double p, int df) {
+	if (df==1) return Math.tan(Math.PI * (p - 0.5));
+	if (df==2) return (2*p-1)/Math.sqrt(2*p*(1-p));
+	double z = normalQuantile(p);
+	double z2 = z*z, z3 = z2*z, z5 = z3*z2, z7 = z5*z2, z9 = z7*z2;
+	double n = df;
+	return z + (z3 + z)/(4*n) +
+	    (5*z5 + 16*z3 + 3*z)/(96*n*n) +
+	    (3*z7 + 19*z5 + 17*z3 - 15*z)/(384*n*n*n) +
+	    (79*z9 + 776*z7 + 1482*z5 - 1920*z3 - 945*z)/(92160*n*n*n*n);
+    }
+
+    /** The quantile of the standard normal distribution (Acklam's
+	rational approximation; relative error below 1.2e-9).
+	@param p The probability, 0 &lt; p &lt; 1
+     */
+    static double normalQuantile(double p) {
+	final double a[] = {-3.969683028665376e+01, 2.209460984245205e+02,
+			    -2.759285104469687e+02, 1.383577518672690e+02,
+			    -3.066479806614716e+01, 2.506628277459239e+00};
+	final double b[] = {-5.447609879822406e+01, 1.615858368580409e+02,
+			    -1.556989798598866e+02, 6.680131188771972e+01,
+			    -1.328068155288572e+01};
+	final double c[] = {-7.784894002430293e-03, -3.223964580411365e-01,
+			    -2.400758277161838e+00, -2.549732539343734e+00,
+			    4.374664141464968e+00, 2.938163982698783e+00};
+	final double d[] = {7.784695709041462e-03, 3.224671290700398e-01,
+			    2.445134137142996e+00, 3.754408661907416e+00};
+	final double pLow = 0.02425;
+	if (p < pLow) {
+	    double q = Math.sqrt(-2*Math.log(p));
+	    return (((((c[0]*q+c[1])*q+c[2])*q+c[3])*q+c[4])*q+c[5]) /
+		((((d[0]*q+d[1])*q+d[2])*q+d[3])*q+1);
+	} else if (p <= 1 - pLow) {
+	    double q = p - 0.5, r = q*q;
+	    return (((((a[0]*r+a[1])*r+a[2])*r+a[3])*r+a[4])*r+a[5])*q /
+		(((((b[0]*r+b[1])*r+b[2])*r+b[3])*r+b[4])*r+1);
+	} else {
+	    return -normalQuantile(1-p);
+	}
+    }
+}
@@ -14,7 +14,9 @@ public class Options {
 
     /** Just the option names, to avoid using quoted strings throughout the
      * program */
-    static final String T = "T", SPEED = "speed";
+    static final String T = "T", SPEED = "speed",
+	FORECAST_RUNS = "forecast.runs", FORECAST_HORIZON = "forecast.horizon",
+	FPS = "fps";
 
     /** The option table. Presently, no config file is used - just get options 
      from the command line using Java system properties (-Dname=value) */
@@ -51,6 +53,34 @@ public class Options {
 	options.setOption(T, val);
     }
 
+    /** The number of simulated futures in a GUI forecast ({@link Forecast}) */
+    final static int defaultForecastRuns = 20;
+    public static int getForecastRuns() {
+	return options.getOption( FORECAST_RUNS, defaultForecastRuns);
+    }
+    public static void setForecastRuns(int val) {
+	options.setOption(FORECAST_RUNS, val);
+    }
+
+    /** How far ahead (in units of simulated time) the GUI forecast looks */
+    final static long defaultForecastHorizon = 1800;
+    public static long getForecastHorizon() {
+	return options.getOptionLong( FORECAST_HORIZON, defaultForecastHorizon);
+    }
+    public static void setForecastHorizon(long val) {
+	options.setOption(FORECAST_HORIZON, val);
+    }
+
+    /** How many times per second (at most) the GUI shows the updated
+	state of the simulation */
+    final static double defaultFps = 25;
+    public static double getFps() {
+	return options.getOptionDouble( FPS, defaultFps);
+    }
+    public static void setFps(double val) {
+	options.setOption(FPS, val);
+    }
+
 
 
 }
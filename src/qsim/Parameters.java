@@ -6,7 +6,7 @@ import java.util.*;
 /** Model parameters and algorithm parameters. The parameter values
     can be supplied via the Java command line (using the Java
     -Dname=val syntax), or via a config file. */
-public class Parameters {
+public class Parameters implements Serializable {
 
     /** Thrown when an error is found in the config file */
     public static class ParseException extends IOException {
@@ -29,6 +29,48 @@ public class Parameters {
      enum CountCurrentlyScreened {
 	YES, NO, PARTIALLY;
     }
+
+    /** The legal values for the configuration parameter "engine",
+	which selects the main simulation loop. SCAN is the original
+	loop, which visits every lane at every step; EVENTS keeps the
+	lanes' next activity times in a heap, and only visits the lanes
+	that have something happening. Both produce identical results.
+     */
+    enum Engine {
+	SCAN, EVENTS;
+    }
+
+    /** The legal values for the configuration parameter "completed",
+	which says what to do with the record of each customer whose
+	screening has been completed (see {@link CompletionSink}):
+	forget it; write it to a trace file (in batch runs); or only
+	accumulate statistics (waiting and screening times).
+     */
+    enum Completed {
+	DISCARD, TRACE, STATS;
+    }
+
+    /** The legal values for the configuration parameter "variates",
+	which selects how the random interarrival and screening times
+	are generated. EXACT uses the original formulas (a logarithm for
+	each interarrival time, a square root for each screening time);
+	FAST uses the faster methods of {@link Variates}. The
+	distributions are the same, but the results of a run with a
+	given seed are not.
+     */
+    enum Variates {
+	EXACT, FAST;
+    }
+
+    /** The legal values for the configuration parameter "rng", which
+	selects the random number generator algorithm (see {@link
+	RandomStreams}): RANDOM (java.util.Random, the original one),
+	L64X128MIX (as L64X128MixRandom), XOROSHIRO128PP (as
+	Xoroshiro128PlusPlus), or SPLITMIX64 (as SplittableRandom).
+     */
+    enum Rng {
+	RANDOM, L64X128MIX, XOROSHIRO128PP, SPLITMIX64;
+    }
     
     /** The number of screening lanes */
     final public int L;
@@ -63,17 +105,46 @@ public class Parameters {
      */
     final int[][] profileIndexes;
 
-    /** The screening profile selection policy */
+    /** The screening profile selection policy, as named in the config
+	file: one of the built-in policies, or one supplied by a {@link
+	PolicyProvider} */
+    final String policyName;
+    /** The built-in policy named by policyName; null if the policy is
+	supplied by a provider */
     final Policy policy;
 
     /** How the customer that's currently being screened is counted
 	for the purposes of measuring the queue length */
     final CountCurrentlyScreened countCurrentlyScreened;
 
+    /** Which simulation loop to use */
+    final Engine engine;
+
+    /** What to do with the customers whose screening has been completed */
+    final Completed completed;
+    /** Are the completed customers simply discarded? The GUI always
+	discards them, whatever the configuration says, since it has no
+	output directory for a trace, and nowhere to show the statistics.
+     */
+    public boolean discardsCompleted() {
+	return completed == Completed.DISCARD;
+    }
+
+    /** How the random interarrival and screening times are generated */
+    final Variates variates;
+
+    /** The random number generator algorithm */
+    final Rng rng;
+
     /** Looks up the j-th profile for Lane k */
     ScreenerProfile getProfile(int k, int j) {
-	return profileIndexes[k]==null? profiles[j] :
-	    profiles[ profileIndexes[k][j]];
+	return profiles[ profileIndex(k, j)];
+    }
+
+    /** The position of the j-th profile for Lane k in the list of all
+	profiles */
+    int profileIndex(int k, int j) {
+	return profileIndexes[k]==null? j : profileIndexes[k][j];
     }
     
     /** Initializes the parameters from a file or from system properties.
@@ -81,7 +152,16 @@ public class Parameters {
 	@throws  IllegalArgumentException If the data are not like expected
     */
     public Parameters(File f) throws IOException {
-	ParseConfig ht = (f==null) ? new ParseConfig() : new ParseConfig(f);
+	this((f==null) ? new ParseConfig() : new ParseConfig(f));
+    }
+
+    /** Initializes the parameters from an already-parsed config file
+	(and system properties). This is used e.g. by {@link Sweep}, which
+	modifies the config file's values before creating each scenario's
+	parameters.
+	@throws  IllegalArgumentException If the data are not like expected
+    */
+    public Parameters(ParseConfig ht) throws IOException {
 	L = ht.getOption("L",4);
 	lambda = ht.getOptionDouble("lambda",0.1);
 	lambdaGrowthRate = ht.getOptionDouble("lambdaGrowthRate",0);
@@ -89,13 +169,29 @@ public class Parameters {
 	fracBad = ht.getOptionDouble("fracBad",0.1);
 	dAcceptable = ht.getOptionDouble("dAcceptable",0);
 
-	policy = ht.getOptionEnum(Policy.class, "policy", Policy.P0);
+	policyName = ht.getOption("policy", Policy.P0.toString());
+	Policy builtIn = null;
+	for(Policy x: Policy.values()) {
+	    if (x.toString().equals(policyName)) builtIn = x;
+	}
+	policy = builtIn;
+	if (policy == null && qsim.Policy.findProvider(policyName) == null) {
+	    throw new IllegalArgumentException("Unknown policy " + policyName + ". Available policies: " + qsim.Policy.availablePolicies());
+	}
 
 	countCurrentlyScreened = ht.getOptionEnum(CountCurrentlyScreened.class,
 						  "policy.countCurrentlyScreened",
 						  CountCurrentlyScreened.NO);
 
-	System.out.println("Policy=" + policy + "; countCurrentlyScreened=" + countCurrentlyScreened);
+	engine = ht.getOptionEnum(Engine.class, "engine", Engine.EVENTS);
+
+	completed = ht.getOptionEnum(Completed.class, "completed", Completed.DISCARD);
+
+	variates = ht.getOptionEnum(Variates.class, "variates", Variates.EXACT);
+
+	rng = ht.getOptionEnum(Rng.class, "rng", Rng.RANDOM);
+
+	System.out.println("Policy=" + policyName + "; countCurrentlyScreened=" + countCurrentlyScreened + "; engine=" + engine + "; variates=" + variates + "; rng=" + rng);
 
 
 	Vector<ScreenerProfile> v = new Vector<ScreenerProfile> ();
@@ -2,6 +2,7 @@ package qsim;
 
 import java.io.*;
 import java.util.*;
+import java.text.*;
 
 /** A policy determines how we choose the screener profile for each
     lane that has multiple profiles available. 
@@ -10,15 +11,21 @@ import java.util.*;
     specific policy actually available in the simulator. Each such
     policy contains a set of rules whereby {@link ScreenerProfile
     screener profiles} are chosen to be used, statically or
-    dynamically.
+    dynamically. Policies other than the built-in ones can be supplied
+    by {@link PolicyProvider}s; such a policy is wrapped in an {@link
+    External} object.
+
+    <p>The wall-clock time of every profile choice is measured, and
+    summarized in the report, so that policies that are too slow for
+    real-time use can be spotted.
  */
-abstract class Policy {
+abstract class Policy implements Serializable {
 
-    Parameters.Policy name;
+    String name;
 
     /** The factory method creates a Policy object to be used in the 
 	simulator.
-	@param para The policy will be chosen as specified in para.policy
+	@param para The policy will be chosen as specified in para.policyName
      */
     static Policy createPolicy(Parameters para, Qsim qsim) {
 	Policy p = null;
@@ -31,15 +38,82 @@ abstract class Policy {
 	} else if (para.policy == Parameters.Policy.P3) {
 	    p = new PolicyP3(qsim.lanes, para.dAcceptable);
 	} else {
-	    return null;
+	    PolicyProvider pp = findProvider(para.policyName);
+	    if (pp == null) return null;
+	    p = new External(pp.create(para, qsim.lanes));
 	}
-	p.name = para.policy;
+	p.name = para.policyName;
 	return p;
     }
+
+    /** Looks up the provider of the named policy on the classpath.
+	@return The provider, or null if there is none */
+    static PolicyProvider findProvider(String name) {
+	for(PolicyProvider pp: ServiceLoader.load(PolicyProvider.class)) {
+	    if (pp.getName().equals(name)) return pp;
+	}
+	return null;
+    }
+
+    /** Lists the names of the built-in policies and of the policies
+	supplied by providers */
+    static String availablePolicies() {
+	StringBuffer b = new StringBuffer();
+	for(Parameters.Policy x: Parameters.Policy.values()) {
+	    b.append((b.length()>0? ", " : "") + x);
+	}
+	for(PolicyProvider pp: ServiceLoader.load(PolicyProvider.class)) {
+	    b.append(", " + pp.getName());
+	}
+	return b.toString();
+    }
+
+    /** A policy supplied by a {@link PolicyProvider} */
+    static class External extends Policy {
+	final ProfilePolicy policy;
+	External(ProfilePolicy _policy) {
+	    policy = _policy;
+	}
+	/** Checks the provider's choice, so that a faulty policy is
+	    reported by name, rather than failing somewhere inside the lane */
+	int chooseProfile(int mypos, Queue[] lanes) {
+	    int k = policy.chooseProfile(mypos, lanes);
+	    int n = lanes[mypos].getProfileCount();
+	    if (k < 0 || k >= n) throw new IllegalArgumentException("Policy " + name + " chose profile " + k + " for lane " + (mypos+1) + ", which only has profiles 0 thru " + (n-1));
+	    return k;
+	}
+	void laneChanged(Queue q) {
+	    policy.laneChanged(q);
+	}
+	String report(Queue[] lanes) {
+	    String s = policy.report(lanes);
+	    return super.report(lanes) + (s==null? "" : "\n" + s);
+	}
+    }
     
     /** Chooses a policy for Lane no. mypos to use at this moment. */
     abstract int chooseProfile(int mypos, Queue[] lanes);
 
+    /** The wall-clock time of the chooseProfile() calls so far, in
+	nanoseconds */
+    private final QuantileSketch decisionTime = new QuantileSketch();
+    private long decisionTimeSum = 0;
+
+    /** Calls chooseProfile(), measuring the time it takes */
+    final int timedChooseProfile(int mypos, Queue[] lanes) {
+	long t0 = System.nanoTime();
+	int k = chooseProfile(mypos, lanes);
+	long t = Math.max(0, System.nanoTime() - t0);
+	decisionTime.add(t);
+	decisionTimeSum += t;
+	return k;
+    }
+
+    /** Is called whenever the queue length, or the broken status, of
+	a lane changes. May be overridden by policies that need to keep
+	track of the lanes' queue lengths. */
+    void laneChanged(Queue q) {}
+
     /** May be overridden by individual policies to produce a
 	performance report. */
     String report(Queue[] lanes) {
@@ -47,5 +121,17 @@ abstract class Policy {
 	return s;
     }
 
+    /** The policy's report, followed by the statistics of the time
+	taken by the profile choices (in microseconds) */
+    final String fullReport(Queue[] lanes) {
+	long n = decisionTime.count();
+	NumberFormat fmt = new DecimalFormat("0.00");
+	return report(lanes) + "\n" + "Profile choices: " + n +
+	    (n==0? "" :
+	     ", mean time " + fmt.format(decisionTimeSum / 1000.0 / n) + " us, p99 " +
+	     fmt.format(decisionTime.quantile(0.99) / 1000.0) + " us, max " +
+	     fmt.format(decisionTime.max() / 1000.0) + " us");
+    }
+
 
 }
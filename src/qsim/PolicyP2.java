@@ -56,7 +56,7 @@ parameter "policy.countCurrentlyScreened".
 class PolicyP2 extends Policy {
 
     /** A Group instance describes all lanes with the same set of profiles. */
-    static class Group {
+    static class Group implements Serializable {
 	final double dAcceptable;
 	/** Number of lanes that have this set of profiles */
 	int n;
@@ -64,6 +64,9 @@ class PolicyP2 extends Policy {
 	final ScreenerProfile[] myprofiles;
 
 	boolean useLowest=false, useHighest=false;
+	/** The index of all working lanes by queue length, shared by all
+	    groups */
+	LaneRank rank;
 	/** Pointer to the low bracket */
 	int lowBracketID;
 	/** The two profiles, "lower" (0) and "higher" (1), bracketing the 
@@ -79,26 +82,6 @@ class PolicyP2 extends Policy {
 	    setBrackets();
 	}
 
-	/** Does o[] contain the same set of profiles as myprofiles[]?
-	    We carry shallow comparison here, because of the way 
-	    profile lists are stored in Queue objects (shallow copy).
-	 */
-	private boolean sameProfiles(ScreenerProfile[] o) {
-	    if (o.length != myprofiles.length) return false;
-	    for(int i=0; i<o.length; i++) {
-		if (o[i] != myprofiles[i])  return false;
-	    }
-	    return true;
-	}
-
-	/** Checks whether a given screening lane can be enrolled into this
-	    group, and if so, increments this group's lane count. */
-	boolean tryToInclude(Queue lane) {
-	    if (!sameProfiles(lane.myprofiles)) return false;
-	    n++;
-	    return true;
-	}
-
 	/** Identifies the 2 "bracket" screeer profiles bracketing
 	    the desired detection rate dAcceptable. This is called
 	    from the Group constructor.
@@ -151,34 +134,14 @@ class PolicyP2 extends Policy {
 	    System.out.println("P2: Out of " + n + " lanes, we'll set " + p2higherCnt + " lanes to the higher profile; f=" +fracUseHigher +"; dAcceptable=" +dAcceptable+", dExpected=" + dExpected );
 	}
        
-	static class QueueComparatorByLength implements Comparator<Queue> {
-	    /** Normal -- ascending -- order */
-	    public int compare(Queue o1, Queue o2) {
-		double x = o1.queueLength() - o2.queueLength();
-		return (x<0? -1 : x>0? 1 : 0);
-	    }    
-	}
-
-	static private final QueueComparatorByLength cmp= new QueueComparatorByLength();
-	
-	/** Lists non-broken lanes */
-	private static Queue [] selectWorkingLanes(Queue[] lanes) {
-	    Vector<Queue> v = new Vector<Queue>(lanes.length);
-	    for(Queue q: lanes) {
-		if (!q.isBroken()) v.add(q);
-	    }
-	    return (Queue [])v.toArray(new Queue[v.size()]);
-	}
-
 	/** Does Lane no. mypos has a short queue? "Short" means one
-	    within fraction f (0 &le; f &le; 1) of all queues. */
-	static boolean hasOneOfTheShorterQueues(int mypos, Queue[] lanes, double f) {
-	    Queue [] z = selectWorkingLanes(lanes);
-	    Arrays.sort(z, cmp);
-	    int p2higherCnt = (int)Math.round( z.length * f);
-	    int rank = 0; // the number of queues shorter than this one
-	    while(z[rank]!=lanes[mypos]) rank++;
-	    return rank < p2higherCnt;
+	    within fraction f (0 &le; f &le; 1) of all working lanes'
+	    queues, ties being broken by lane number. */
+	boolean hasOneOfTheShorterQueues(int mypos, double f) {
+	    int p2higherCnt = (int)Math.round( rank.count() * f);
+	    if (p2higherCnt == 0) return false;
+	    // the number of queues shorter than this one
+	    return rank.rank(mypos) < p2higherCnt;
 	}
 
 	/** Policy is choosen independently within each group. The
@@ -187,12 +150,14 @@ class PolicyP2 extends Policy {
 	int chooseProfile(int mypos, Queue[] lanes) {
 	    if (useLowest) return 0;
 	    if (useHighest) return myprofiles.length-1;
-	    boolean isShort=hasOneOfTheShorterQueues(mypos,lanes,fracUseHigher);
+	    boolean isShort=hasOneOfTheShorterQueues(mypos,fracUseHigher);
 	    int d = isShort ? 1 : 0;
   	    return lowBracketID+d;
 	}
 
-	static final NumberFormat fmt = new DecimalFormat("0.000");
+	/** Not static, because NumberFormat is not thread-safe, and
+	    several simulations may be running at the same time */
+	final NumberFormat fmt = new DecimalFormat("0.000");
 
 	/** Reports on this group's lanes' operations so far */
 	String report(Queue[] lanes, Group[] lane2group) {
@@ -248,6 +213,12 @@ class PolicyP2 extends Policy {
     final Group[] groups;
     /** Pointers into groups[] */
     private final Group[] lane2group;
+    /** All working lanes, ranked by queue length */
+    private final LaneRank rank;
+
+    void laneChanged(Queue q) {
+	rank.update(q);
+    }
 
     int chooseProfile(int mypos, Queue[] lanes) {
 	return lane2group[mypos].chooseProfile(mypos, lanes);
@@ -260,23 +231,26 @@ class PolicyP2 extends Policy {
     }
 
     /** Divides list of lanes into groups of "equivalent" (identically
-	equipped) ones. Used in the constructor. */
+	equipped) ones. Used in the constructor. Lanes are looked up by
+	their lists of profiles; since ScreenerProfile does not override
+	equals(), the lists are compared shallowly, which is right
+	because of the way profile lists are stored in Queue objects
+	(shallow copy). */
     private Group[] makeGroups(Queue[] lanes, double dAcceptable,
 			       Group [] lane2group) {
 	//System.out.println("PolicyP2.makeGroups: " + this.getClass());
 	Vector<Group> v= new Vector<Group>();
+	HashMap<List<ScreenerProfile>,Group> h = new HashMap<List<ScreenerProfile>,Group>();
 	for(int i=0; i<lanes.length; i++) {
-	    boolean found = false;
-	    for(Group g: v) {
-		if (g.tryToInclude(lanes[i])) {
-		    lane2group[i] = g;
-		    found=true;
-		    break;
-		}
+	    List<ScreenerProfile> key = Arrays.asList(lanes[i].myprofiles);
+	    Group g = h.get(key);
+	    if (g != null) {
+		g.n++;
+	    } else {
+		g = groupConstructor(lanes[i], dAcceptable);
+		v.add(g);
+		h.put(key, g);
 	    }
-	    if (found) continue;
-	    Group g = groupConstructor(lanes[i], dAcceptable);
-	    v.add(g);
 	    lane2group[i] = g;
 	}
 	System.out.println("P2: Found " + v.size() + " groups of identically-equipped lanes");
@@ -288,7 +262,9 @@ class PolicyP2 extends Policy {
 	final int L = lanes.length;
 	lane2group = new Group[L]; 
 	groups = makeGroups(lanes, dAcceptable, lane2group);
+	rank = new LaneRank(lanes);
 	for(Group g: groups) {
+	    g.rank = rank;
 	    g.p2assign();
 	}
     }
@@ -297,7 +273,7 @@ class PolicyP2 extends Policy {
     String report(Queue[] lanes) {
 	StringBuffer b = new StringBuffer(super.report(lanes));
 	//b.append(". Count currently screened customer in qlen: " + countCurrentlyScreened);
-	b.append(". Target rate " + Group.fmt.format(groups[0].dAcceptable));
+	b.append(". Target rate " + groups[0].fmt.format(groups[0].dAcceptable));
 	for(int i=0; i<groups.length; i++) {
 	    b.append("\n");
 	    b.append("Group "+(i+1)+" ("+groups[i].n+" lanes); " + groups[i].report(lanes, lane2group));
@@ -87,7 +87,7 @@ class PolicyP3 extends PolicyP2 {
 	    if (useHighest) return myprofiles.length-1;
 	    allocTicketsIfNeeded();
 	    double fHigh = (double)(tickets[1])/(double)(tickets[1]+tickets[0]);
-	    boolean isShort=hasOneOfTheShorterQueues(mypos,lanes,fHigh);
+	    boolean isShort=hasOneOfTheShorterQueues(mypos,fHigh);
 	    int d = isShort ? 1 : 0;
 	    useTicket(d);
 	    return lowBracketID+d;
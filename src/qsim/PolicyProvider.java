@@ -0,0 +1,21 @@
+package qsim;
+
+/** Supplies a {@link ProfilePolicy} that can be selected by name in
+    the config file ("policy=NAME"), in addition to the built-in
+    policies (P0 thru P3). Providers are discovered with {@link
+    java.util.ServiceLoader}: to add a policy, put a jar file with the
+    implementing classes on the classpath, with the name of the
+    provider class listed in its META-INF/services/qsim.PolicyProvider
+    file.
+ */
+public interface PolicyProvider {
+
+    /** The name by which the policy is selected in the config file */
+    String getName();
+
+    /** Creates the policy for a simulator.
+	@param para The simulation parameters
+	@param lanes All lanes of the simulator
+     */
+    ProfilePolicy create(Parameters para, Queue[] lanes);
+}
@@ -0,0 +1,35 @@
+package qsim;
+
+import java.io.*;
+
+/** A screener profile selection policy supplied from outside the
+    simulator (see {@link PolicyProvider}). Every time a lane is about
+    to start screening a customer, the policy chooses which of the
+    lane's profiles to use.
+
+    <p>The policy is saved with the rest of the simulator in
+    checkpoints, and copied along with it for forecasts, so it must be
+    serializable. It is only called by the thread running the
+    simulation.
+ */
+public interface ProfilePolicy extends Serializable {
+
+    /** Chooses the profile for Lane no. mypos to use for the customer
+	it is about to screen.
+	@param mypos The lane (0-based)
+	@param lanes All lanes of the simulator
+	@return The position of the profile in the lane's list of
+	profiles (0 thru lanes[mypos].getProfileCount()-1)
+     */
+    int chooseProfile(int mypos, Queue[] lanes);
+
+    /** Is called whenever the queue length, or the broken status, of
+	a lane changes, for policies that keep track of the lanes
+	rather than look at all of them at every choice. Does nothing
+	by default. */
+    default void laneChanged(Queue q) {}
+
+    /** Describes the policy's operation so far, to be shown with the
+	simulator's reports. May return null. */
+    String report(Queue[] lanes);
+}
@@ -5,7 +5,7 @@ import java.util.*;
 import java.text.*;
 
 /** The main queue simulator class; simulates the behaviour of a battery of L lines */
-public class Qsim {
+public class Qsim implements Serializable {
 
     final int L;
     final Parameters para;
@@ -23,11 +23,36 @@ public class Qsim {
     /** Controls the choice of screener profiles for each lane. */
     Policy policy;
 
+    /** The random number generators used by this simulator
+	(arrivals, threats, screening times, detection). Each simulator
+	has its own, so that several simulations can run at the same
+	time. */
+    RandomStreams streams;
+
+    /** Replaces the random number generators. This is used to give
+	copies of the same simulator state different futures. */
+    void reseed(RandomStreams _streams) {
+	streams = _streams;
+	for(Queue q: lanes) q.initGenerators();
+    }
+
+    /** Creates a simulator with a single random number generator
+	(of the type specified by the parameters) seeded with 0.
+	@param _para Contains system parameters and simulation parameters
+	@param _now Sets the times (usually, to 0)
+     */
+    public Qsim(Parameters _para, long _now, StaticArrivalSchedule[] ss)  {
+	this(_para, _now, ss, new RandomStreams(0, false, false, _para.rng));
+    }
+
     /**@param _para Contains system parameters and simulation parameters
        @param _now Sets the times (usually, to 0)
+       @param _streams The random number generators to use
      */
-    public Qsim(Parameters _para, long _now, StaticArrivalSchedule[] ss)  {
+    public Qsim(Parameters _para, long _now, StaticArrivalSchedule[] ss,
+		RandomStreams _streams)  {
 	para = _para;
+	streams = _streams;
 	L = para.L;
 	now = _now;
 	lanes = new Queue[L];
@@ -35,6 +60,7 @@ public class Qsim {
 	    StaticArrivalSchedule s = (ss==null)?null: ss[i];
 	    lanes[i] = new Queue(para, now, this, i, s);
 	}
+	laneChanged = new boolean[L];
 	System.out.println(showProfiles());
 	policy = Policy.createPolicy(para, this);
     }
@@ -73,64 +99,171 @@ public class Qsim {
 	we need to recheck at least that device's status */
     public synchronized  void requestAttention() {
 	attentionRequested = true;
+	fullScanRequested = true;
+    }
+
+    /** If set, the event-list engine will visit every lane at the
+	next step, just like the scanning loop does. This is needed
+	at the start of each simulate() call, and whenever some lane
+	has been broken or fixed, since that may give work to lanes
+	that otherwise have nothing scheduled.
+     */
+    private volatile boolean fullScanRequested = true;
+
+    /** The broken lanes: bit j is set if lanes[j] is broken. This
+	allows a lane to find its nearest working neighbors with a
+	word-at-a-time scan, rather than by visiting the lanes one by
+	one, which matters when there are many lanes and long stretches
+	of them are broken. */
+    private final BitSet brokenLanes = new BitSet();
+
+    /** Called by a lane when it has been broken or fixed */
+    void brokenStatusChanged(int j) {
+	brokenLanes.set(j, lanes[j].isBroken());
+	fullScanRequested = true;
     }
 
     /** History data which can be printed to a file at the end of run,
 	or used to draw a chart showing the crowd size as a function
-	of time.
-	logData[i] = (t[i], crowd_size[i]))
+	of time. In batch runs, it may be written to the log file as
+	the simulation goes, rather than kept in memory.
      */
-    private Vector<long[]> logData = new Vector<long[]>();
+    private CrowdLog log = new CrowdLog();
 
-    public Vector<long[]> getLogData() {
-	return logData;
+    /** The crowd size history kept in memory, as a series of (t,
+	crowd_size) samples. Unless the log is being streamed to a file,
+	this is the entire history of the run. It can be read from any
+	thread without holding up the simulation.
+     */
+    public TimeSeries getLogData() {
+	return log.getTail();
     }
 
-    synchronized private void logC(long t, int c) {
-	int n=logData.size();
-	if (n>0 && logData.elementAt(n-1)[0]==t) {
-	    logData.elementAt(n-1)[1] = c;
-	} else {
-	    logData.add( new long[] {t, c});
+    /** Writes the crowd size log to the specified file as the
+	simulation goes, instead of keeping it all in memory. The file
+	is completed by saveLog(f).
+	@param tail How many of the most recent log entries to keep in memory
+    */
+    public void streamLog(File f, int tail) throws IOException {
+	log.startStreaming(f, tail);
+    }
+
+    /** Continues writing the streaming log after this simulator has been
+	restored from a checkpoint */
+    void resumeLog() throws IOException {
+	log.resume();
+    }
+
+    private void logC(long t, long c) {
+	if (t > lastLogT) {
+	    crowdArea += lastLogC * (t - lastLogT);
+	    lastLogT = t;
 	}
+	lastLogC = c;
+	log.add(t, c);
     }
 
-    /** Saves the accummulated log information for this run.
+    /** The integral of the crowd size over time, from the start of the
+	simulation to lastLogT, and the most recently logged crowd
+	size */
+    private long crowdArea = 0, lastLogT = 0, lastLogC = 0;
+
+    /** The time-averaged crowd size, from t=0 to the most recent step */
+    public double meanCrowd() {
+	return lastLogT>0 ? (double)crowdArea / lastLogT : lastLogC;
+    }
+
+    /** Saves the accummulated log information for this run. If the log
+	is being streamed to f, this just completes that file.
      @param f File into which the data will be written */
     public void saveLog(File f) throws IOException {
-	PrintWriter w = new PrintWriter(new FileWriter(f));
-	for(long[] q: logData) {
-	    w.println("" + q[0] + " " + q[1]);
-	}
-	w.print("caught={");
+	StringBuffer b = new StringBuffer("caught={");
 	for(int i=0; i<lanes.length; i++) {
-	    w.print((i>0? ", " :"") + (i+1) + ": " + lanes[i].detectedCnt);
+	    b.append((i>0? ", " :"") + (i+1) + ": " + lanes[i].detectedCnt);
 	}
-	w.print("} missed={");
+	b.append("} missed={");
 	for(int i=0; i<lanes.length; i++) {
-	    w.print((i>0? ", " :"") + (i+1) + ": " + lanes[i].missedCnt);
+	    b.append((i>0? ", " :"") + (i+1) + ": " + lanes[i].missedCnt);
 	}
-	w.println("}");
-	w.close();
+	b.append("}");
+	log.save(f, b.toString());
     }
 
     /** This may be subclassed to provide necessary functionality */
     static public class ProgressDisplay {
-	/** Displays stats for one lane */
-	public void display(int j, Queue q) {}
+	/** Does this display actually show anything? If it does not
+	    (as is the case in batch runs), the simulator won't waste
+	    time preparing the text to be shown.  */
+	public boolean isActive() { return false; }
+	/** Displays stats for one lane. Is called from the simulation
+	    thread, with a snapshot the lane has just published. */
+	public void display(int j, Queue.Snapshot s) {}
 	/** Displays aggregate stats for all lanes (single line of text) */
 	public void showSummary(String s) {}
 	/** Displays additional stats (multi-line text) */
 	public void showStats2(String s) {}
 	/** Plots the updated historical crowd size graph */
-	public void plotCrowdData( Vector<long[]> logData)  {}
+	public void plotCrowdData( TimeSeries logData)  {}
+	/** How many times per second (at most) the simulator should
+	    send updates to this display. If 0, updates are sent at every
+	    time step. */
+	public double getFrameRate() { return 0; }
+	/** Is called after all updates of one frame have been sent */
+	public void endFrame() {}
     }
 
-    ProgressDisplay display = new ProgressDisplay();
+    transient ProgressDisplay display = new ProgressDisplay();
     public void setProgressDisplay( ProgressDisplay d) { 
 	display = d;
     }
 
+    /** Receives the customers whose screening has been completed */
+    CompletionSink completionSink = new CompletionSink.Discard();
+    void setCompletionSink(CompletionSink s) {
+	completionSink = s;
+    }
+
+    /** If not null, the state of the simulator is saved periodically, so
+	that an interrupted run can be resumed */
+    private transient Checkpoint checkpoint = null;
+    void setCheckpoint(Checkpoint c) {
+	checkpoint = c;
+    }
+
+    /** Serializes the state of this simulator, for {@link Forecast} to
+	make copies of. Unlike a checkpoint, the snapshot leaves out the
+	parts of the state that the copies don't need, and whose size
+	grows with the length of the run: the crowd size history (of
+	which only the current crowd size is kept), and the completed
+	customers (the copies discard theirs). Is only to be called at
+	a safe point of the simulation, or when it is not running. */
+    byte[] snapshot() throws IOException {
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	ObjectOutputStream out = new ObjectOutputStream(bytes) {
+		{ enableReplaceObject(true); }
+		protected Object replaceObject(Object o) {
+		    if (o == log) return log.current();
+		    if (o == completionSink) return new CompletionSink.Discard();
+		    return o;
+		}
+	    };
+	out.writeObject(this);
+	out.close();
+	return bytes.toByteArray();
+    }
+
+    /** Restores the non-serialized fields, when the simulator is read
+	from a checkpoint file. The display is not saved; the event-list
+	engine's data structures are rebuilt by simulate(), and the lanes'
+	snapshots are published anew. */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+	in.defaultReadObject();
+	display = new ProgressDisplay();
+	safePointTasks = new Vector<Runnable>();
+	for(Queue q: lanes) q.publish();
+	laneChanged = new boolean[L];
+    }
+
 
     /** Gradually advances the simulated time (variable "now") to be 
 	equal to now1, at the appropriate speed (the simulated time to 
@@ -142,25 +275,16 @@ public class Qsim {
 	some other actions
      */
     private boolean goSlow(long now0, long now1, long msec0) {
-	double speed = Options.getSpeed();
+	double speed = fullSpeed? 0 : Options.getSpeed();
 	if (speed<=0) { // a non-interactive run
 	    now = now1;
 	    return false;
 	}
 	long msecTarget = msec0 + (long)((now1 - now0) * 1000.0 / speed);
-	long lastMsecShow= -1;
 	while(now < now1) {
 	    long msecNow = (new Date()).getTime();
-	    if (lastMsecShow<0) lastMsecShow=msecNow;
-
-	    if (msecNow - lastMsecShow  >= 1000) {
-		display.showSummary(" t=" + now + ", " + summaryText());
-		display.showStats2(policy.report(lanes));
-		lastMsecShow = msecNow;
-	    }
-
-
 	    now = Math.min(  Math.max(now, now0 + (long)((msecNow-msec0)*speed / 1000)), now1);
+	    sendFrame(false);
 	    if (stopRequested || attentionRequested) return true;
 	    if (msecNow >= msecTarget) {
 		now = now1;
@@ -176,10 +300,64 @@ public class Qsim {
 
     }
 
+    /** If true, this simulator runs as fast as it can, regardless of
+	the speed set in {@link Options}. This is used for background
+	runs (such as forecasts) started from the GUI. */
+    private transient boolean fullSpeed = false;
+    void setFullSpeed(boolean f) { fullSpeed = f; }
+
+    /** Is simulate() running right now? */
+    private transient boolean running = false;
+    /** Tasks waiting for the simulation loop to reach a safe point */
+    private transient Vector<Runnable> safePointTasks = new Vector<Runnable>();
+
+    /** Runs a task that needs to see (or copy) a consistent state of
+	the simulator. If the simulation is running in another thread,
+	the task will be run by that thread, at the top of the next
+	iteration of the main loop (where nothing has been done at the
+	current time step yet), and this method returns right away;
+	otherwise, the task is run right now, in the calling thread.
+     */
+    public void runAtSafePoint(Runnable r) {
+	synchronized(this) {
+	    if (running) {
+		safePointTasks.add(r);
+		// don't wait for the next event at the interactive speed
+		attentionRequested = true;
+		return;
+	    }
+	}
+	r.run();
+    }
+
+    /** Breaks or fixes the j-th lane. May be called from any thread
+	(e.g. the GUI); the change is made by the simulation thread at the
+	next safe point, after which the lane's display is updated. */
+    public void setBroken(final int j, final boolean b) {
+	runAtSafePoint(new Runnable() {
+		public void run() {
+		    lanes[j].setBroken(b);
+		    laneChanged[j] = true;
+		    sendFrame(true);
+		}
+	    });
+    }
+
+    private void runSafePointTasks() {
+	Runnable[] tasks;
+	synchronized(this) {
+	    if (safePointTasks.isEmpty()) return;
+	    tasks = safePointTasks.toArray(new Runnable[0]);
+	    safePointTasks.clear();
+	}
+	for(Runnable r: tasks) r.run();
+    }
+
     /** When is the time we need to attend to an event in some lane?
 	@return Time of that event, or Queue.NEVER if none is expected
     */
     private long  findNextActivityTime() {       
+	if (para.engine == Parameters.Engine.EVENTS) return events.minTime();
 	long minT = Queue.NEVER;
 	for(int j=0; j< lanes.length; j++) {
 	    Queue q=lanes[j];
@@ -190,6 +368,147 @@ public class Qsim {
 	return minT;
     }
 
+    /** One step of the original simulation loop: every lane is visited
+	three times (arrivals, completions, idle screeners), and then once
+	more to update the display.
+     */
+    private void stepScan() {
+	boolean mustRedisplay[] = new boolean[lanes.length];
+	// Handle all arrivals that may be happening right now
+	for(int j=0; j< lanes.length; j++) {
+	    mustRedisplay[j] = lanes[j].isBroken();
+	    if (lanes[j].handleImmediateArrival(now))
+		mustRedisplay[j] = true;
+	}
+
+	// Handle all completions that may be happening right now
+	for(int j=0; j< lanes.length; j++) {
+	    if (lanes[j].handleImmediateScreeningCompletion(now))
+		mustRedisplay[j] = true;
+	}
+
+	// Give work to all idle screeners for which work can be found
+	for(int j=0; j< lanes.length; j++) {
+	    if (lanes[j].handleIdle(now)) 
+		mustRedisplay[j] = true;
+	}
+	
+	// Mark all affected or potentially affected lanes for redisplay
+	for(int j=0; j< lanes.length; j++) {
+	    if (mustRedisplay[j]) laneChanged[j] = true;
+	}
+    }
+
+    /** The event list: the lanes' next activity times, in a heap. Only
+	used with the EVENTS engine. */
+    private transient EventHeap events = null;
+    /** The lanes to visit at the current step (in lane order, once sorted),
+	and the flags marking them */
+    private transient int[] visit;
+    private transient boolean[] visitMark, redisplayMark;
+    private transient int visitCnt;
+    /** Working lanes that have a broken lane next to them, and the
+	broken lanes themselves */
+    private transient int[] helpers, broken;
+    private transient int helperCnt, brokenCnt;
+
+    /** Creates the event list, with each lane's next activity time */
+    private void initEvents() {
+	events = new EventHeap(L);
+	for(int j=0; j<L; j++) {
+	    events.set(j, lanes[j].findNextActivityTime());
+	}
+	visit = new int[L];
+	visitMark = new boolean[L];
+	redisplayMark = new boolean[L];
+	helpers = new int[L];
+	broken = new int[L];
+    }
+
+    /** Finds the working lanes that may take customers from a broken
+	neighbor. A working lane with no broken lane next to it can
+	only get new work through its own arrivals, and an idle lane
+	is only visited at the times of its own events. */
+    private void findHelpers() {
+	helperCnt = brokenCnt = 0;
+	for(int j=brokenLanes.nextSetBit(0); j>=0; j=brokenLanes.nextSetBit(j+1)) {
+	    broken[brokenCnt++] = j;
+	    // the lanes are visited in order, so a helper to the left of
+	    // this lane may only have been added just now
+	    if (j>0 && !brokenLanes.get(j-1) &&
+		(helperCnt==0 || helpers[helperCnt-1] != j-1)) {
+		helpers[helperCnt++] = j-1;
+	    }
+	    if (j+1<L && !brokenLanes.get(j+1)) {
+		helpers[helperCnt++] = j+1;
+	    }
+	}
+    }
+
+    private void markVisit(int j) {
+	if (visitMark[j]) return;
+	visitMark[j] = true;
+	visit[visitCnt++] = j;
+    }
+
+    /** One step of the event-list engine. It visits the same lanes, in
+	the same order, as {@link #stepScan()} does, skipping only the
+	lanes for which all three handlers are guaranteed to do nothing:
+	a lane whose next event is in the future, and that is either
+	busy, or idle with no broken neighbor to take customers from.
+	Therefore the two engines consume random numbers in the same
+	order, and produce identical results.
+     */
+    private void stepEvents() {
+	// reset the flag first, so that a concurrent change won't be lost
+	boolean fullScan = fullScanRequested;
+	fullScanRequested = false;
+	if (fullScan) findHelpers();
+
+	// The lanes that have an arrival or completion right now, in lane order
+	visitCnt = 0;
+	while(!events.isEmpty() && events.minTime() <= now) {
+	    markVisit(events.poll());
+	}
+	final int eventCnt = visitCnt;
+	for(int i=0; i<eventCnt; i++) {
+	    int j = visit[i];
+	    if (lanes[j].handleImmediateArrival(now)) redisplayMark[j] = true;
+	}
+	for(int i=0; i<eventCnt; i++) {
+	    int j = visit[i];
+	    if (lanes[j].handleImmediateScreeningCompletion(now)) redisplayMark[j] = true;
+	}
+
+	// Add the lanes which may have become idle, or may find work at
+	// their neighbors, and visit them all in lane order
+	if (fullScan) {
+	    for(int j=0; j<L; j++) markVisit(j);
+	} else {
+	    for(int i=0; i<helperCnt; i++) markVisit(helpers[i]);
+	}
+	if (visitCnt > eventCnt) Arrays.sort(visit, 0, visitCnt);
+	for(int i=0; i<visitCnt; i++) {
+	    int j = visit[i];
+	    if (lanes[j].handleIdle(now)) redisplayMark[j] = true;
+	}
+
+	// Reschedule the visited lanes, and mark the affected ones for redisplay
+	for(int i=0; i<brokenCnt; i++) redisplayMark[broken[i]] = true;
+	for(int i=0; i<visitCnt; i++) {
+	    int j = visit[i];
+	    visitMark[j] = false;
+	    events.set(j, lanes[j].findNextActivityTime());
+	    if (redisplayMark[j]) laneChanged[j] = true;
+	    redisplayMark[j] = false;
+	}
+	for(int i=0; i<brokenCnt; i++) {
+	    int j = broken[i];
+	    if (redisplayMark[j]) laneChanged[j] = true;
+	    redisplayMark[j] = false;
+	}
+    }
+
     /** The main simulation loop.
 
 	@param T stop if simulation time reaches T. Use a negative
@@ -197,50 +516,48 @@ public class Qsim {
     */
     public void simulate(final long T) {
 	stopRequested = false;
+	synchronized(this) {
+	    running = true;
+	}
 
 	final long msec0 = (new Date()).getTime();
         long msecAtLastReplot = msec0;
 	final long now0 = now;
 	
 
+	final boolean useEvents = (para.engine == Parameters.Engine.EVENTS);
+	if (useEvents) {
+	    // lanes may have been changed since the last call
+	    initEvents();
+	    fullScanRequested = true;
+	}
+
 	long lastPrint =0;
 	while(T<0 || now<=T) {
 	    if (resetStopRequest()) break;
 	    if (attentionRequested) attentionRequested = false;
-
-	    boolean mustRedisplay[] = new boolean[lanes.length];
-	    boolean mustReplot = false;
-	    // Handle all arrivals that may be happening right now
-	    for(int j=0; j< lanes.length; j++) {
-		mustRedisplay[j] = lanes[j].isBroken();
-		if (lanes[j].handleImmediateArrival(now))
-		    mustRedisplay[j] = true;
-	    }
-
-	    // Handle all completions that may be happening right now
-	    for(int j=0; j< lanes.length; j++) {
-		if (lanes[j].handleImmediateScreeningCompletion(now))
-		    mustRedisplay[j] = true;
+	    runSafePointTasks();
+
+	    // Nothing has been done at this time step yet, so a run resumed
+	    // from this checkpoint will continue exactly from here
+	    if (checkpoint != null && checkpoint.isDue()) {
+		try {
+		    checkpoint.save(this, false);
+		} catch(IOException ex) {
+		    System.out.println("Failed to save checkpoint: " + ex);
+		}
 	    }
 
-	    // Give work to all idle screeners for which work can be found
-	    for(int j=0; j< lanes.length; j++) {
-		if (lanes[j].handleIdle(now)) 
-		    mustRedisplay[j] = true;
-	    }
-	
-	    // Redisplay all affected or potentially affected lanes
-	    for(int j=0; j< lanes.length; j++) {
-		if (mustRedisplay[j]) display.display(j, lanes[j]);
-	    }
+	    boolean mustReplot = false;
+	    if (useEvents) stepEvents();
+	    else stepScan();
 
 	    // Display the current state
-	    display.showSummary(" t=" + now + ", " + summaryText());
-	    display.showStats2(policy.report(lanes));
-	    //	    display.plotCrowdData(logData);
-	    logC(now, sumLen());
+	    sendFrame(false);
+	    //	    display.plotCrowdData(getLogData());
+	    logC(now, sumLen);
 
-	    if (now / 100 > lastPrint / 100) {
+	    if (!headless && now / 100 > lastPrint / 100) {
 		System.out.println("At t=" + now);
 		describe();		
 		lastPrint = now;
@@ -254,7 +571,7 @@ public class Qsim {
 		// No internally-driven activity will happen anymore.
 		// Any queued customers may only exist in broken
 		// lanes, and are immobile.	
-		System.out.println("No one is being processed or arriving anymore; Done!");
+		if (!quiet) System.out.println("No one is being processed or arriving anymore; Done!");
 		break;
 	    }
 
@@ -267,52 +584,92 @@ public class Qsim {
 	    // only redisplay plot every 2 sec or so, to save resources
 	    mustReplot = isClick || (msec1 > msecAtLastReplot + 2000);
 	    if (mustReplot) {
-		display.plotCrowdData(logData);
+		display.plotCrowdData(getLogData());
 		msecAtLastReplot = (new Date()).getTime();
 	    }
 	}
 
-	System.out.println("END: At t=" + now);
-	describe();
-	display.showSummary("t=" + now + ", " + summaryText());
+	synchronized(this) {
+	    running = false;
+	}
+	// the tasks that have arrived too late for the loop
+	runSafePointTasks();
+
+	if (!quiet) {
+	    System.out.println("END: At t=" + now);
+	    if (headless) {
+		System.out.println(summaryText());
+		System.out.println(policy.fullReport(lanes));
+	    } else {
+		describe();
+	    }
+	}
+	sendFrame(true);
     }
 
+    /** The lanes whose display needs to be updated */
+    private transient boolean[] laneChanged;
+    /** When the most recent frame was sent to the display (System.nanoTime()) */
+    private transient long lastFrameNanos;
+
+    /** Sends a frame to the display, if the display is going to show
+	it: the snapshots of the lanes that have changed since the last
+	frame, the summary line, and the policy report. Unless forced,
+	this is only done if enough time has passed since the last
+	frame, as per the display's frame rate.
+     */
+    private void sendFrame(boolean force) {
+	if (!display.isActive()) return;
+	double fps = display.getFrameRate();
+	long t = System.nanoTime();
+	if (!force && fps > 0 && t - lastFrameNanos < (long)(1e9/fps)) return;
+	lastFrameNanos = t;
+	for(int j=0; j<lanes.length; j++) {
+	    if (!laneChanged[j]) continue;
+	    display.display(j, lanes[j].publish());
+	    laneChanged[j] = false;
+	}
+	display.showSummary(" t=" + now + ", " + summaryText());
+	display.showStats2(policy.fullReport(lanes));
+	display.endFrame();
+    }
+
+    /** In the headless mode, the simulator does not print the state
+	of every lane every 100 time units, and only prints a summary
+	at the end of the run. This is appropriate for long batch runs,
+	where these printouts would take more time than the simulation
+	itself. */
+    private boolean headless = false;
+    public void setHeadless(boolean h) { headless = h; }
+
+    /** A quiet simulator prints nothing at all, not even the summary at
+	the end of the run. This is used for the copies run by {@link
+	Forecast}, which may be many, and whose results are shown in the
+	GUI rather than printed. */
+    private transient boolean quiet = false;
+    void setQuiet(boolean q) { quiet = q; }
+
    
     void describe() {
 	for(int i=0; i<L; i++) {
 	    System.out.println("" + i + "\t" + lanes[i].describeQueue());
 	}
-	System.out.println(policy.report(lanes));
+	System.out.println(policy.fullReport(lanes));
     }
 
     String summaryText() {
-	int sumLen = 0, sumArv=0, sumDone=0, sumDet=0, sumMissed=0;
- 	for(int i=0; i<L; i++) {
-	    sumLen += lanes[i].waitingCnt();
-	    sumArv += lanes[i].arvCnt;
-	    sumDone += lanes[i].allCnt;
-	    sumDet  += lanes[i].detectedCnt;
-	    sumMissed  += lanes[i].missedCnt;
-	}
-
 	return "Arrivals " + sumArv +"; Queued " + sumLen + ", done "+ sumDone + ", caught " + sumDet + ", missed " + sumMissed;
-
     }
 
-
-    private int sumLen() {
-	int sumLen = 0;
- 	for(int i=0; i<L; i++) {
-	    sumLen += lanes[i].waitingCnt();
-	}
-	return sumLen;	
-    }
+    /** Totals over all lanes: customers in line (including those being
+	screened); arrivals; screened; detected threats; missed threats.
+	They are updated by the lanes as customers arrive and leave,
+	so that we don't need to add them up over all lanes at every step. */
+    long sumLen = 0, sumArv=0, sumDone=0, sumDet=0, sumMissed=0;
 
     static final public String version = "0.6.3";
     static final public String releaseDate = "2017-08-25";
 
-    static Random gen = new Random(0); 
-
     /*
     void setArrivals(StaticArrivalSchedule[] ss) {
 	for(int i=0; i<L; i++) {
@@ -321,6 +678,14 @@ public class Qsim {
     }
     */
 
+    /** Closes the arrival schedule files that the lanes may still be
+	reading (see {@link StaticArrivalSchedule#open(File, int)}) */
+    void closeArrivals() throws IOException {
+	for(Queue q: lanes) {
+	    if (q.sched != null) q.sched.close();
+	}
+    }
+
     static void usage() {
 	usage(null);
     }
@@ -331,7 +696,18 @@ public class Qsim {
 	System.out.println(" [-DT=-1] -- will stop after simulation time reaches that point. (-1 means don't stop until running out of customers)");
 	System.out.println(" [-Dspeed=100] -- simulation speed (units of sim time per real-clock second). (0 means run fast)");
 	System.out.println(" [-Druns=1] -- number of simulation runs");
-	System.out.println(" [-Dseed=0] -- seed for the random number generator");
+	System.out.println(" [-Dseed=0] -- seed for the random number generator. (Run 0 uses this seed; the seeds for the other runs are derived from it)");
+	System.out.println(" [-Dthreads=1] -- number of simulation runs to carry out at the same time. The results don't depend on it");
+	System.out.println(" [-Dcrn=false] -- common random numbers: separate random number generators for each lane and purpose");
+	System.out.println(" [-Dantithetic=false] -- use pairs of runs, the second run of each pair using antithetic random numbers");
+	System.out.println(" [-Dcompare=config-b.dat] -- also run another configuration with the same random numbers, and report the paired differences");
+	System.out.println(" [-Dprecision=0.05] -- instead of a fixed number of runs, keep running until the 95% confidence intervals of the run outputs are within this fraction of their means (or of the paired differences, with -Dcompare)");
+	System.out.println(" [-DmaxRuns=100] -- with -Dprecision, the maximum number of runs");
+	System.out.println(" [-Dcheckpoint=0] -- save the state of each run every so many seconds of wall clock time, in queue-NNN.ckpt (0 means never)");
+	System.out.println(" [-Dresume=false] -- resume the runs from the checkpoint files in the output directory, if they exist");
+	System.out.println(" [-DstreamArrivals=false] -- with -Darrivals, read each run's arrival schedule while the run goes on, rather than all of them in advance");
+	System.out.println(" [-Dengine=EVENTS] -- simulation loop: EVENTS (event list) or SCAN (visit all lanes at every step); both give identical results");
+	System.out.println(" [-Dheadless=false] -- if true, don't print the state of all lanes every 100 time units, only a summary at the end of each run");
 	if (m!=null) {
 	    System.out.println(m);
 	}
@@ -391,51 +767,152 @@ public class Qsim {
 
 	// The seed for the random number generator. 
 	long seed = ht.getOptionLong("seed", 0);
-	gen = new Random(seed);
 
 	int runs = ht.getOption("runs", 1);
 	if (runs < 1) usage();
+	// Sequential stopping: "runs" is replaced by the budget
+	double precision = ht.getOptionDouble("precision", 0);
+	if (precision < 0) usage("The precision must be positive");
+	if (precision > 0) {
+	    runs = ht.getOption("maxRuns", 100);
+	    if (runs < 1) usage("The maximum number of runs must be positive");
+	}
 	long T = ht.getOptionLong("T", -1);
+	boolean headless = ht.getOption("headless", false);
+	int threads = ht.getOption("threads", 1);
+	if (threads < 1) usage("The number of threads must be positive");
+	boolean crn = ht.getOption("crn", false);
+	double checkpointSec = ht.getOptionDouble("checkpoint", 0);
+	boolean resume = ht.getOption("resume", false);
+	boolean antithetic = ht.getOption("antithetic", false);
+	if (antithetic && runs%2==1) {
+	    runs++;
+	    System.out.println("Antithetic runs come in pairs; will carry out " + runs + " runs");
+	}
+	String compare = ht.getOption("compare", null);
+	qsim.Parameters paraB = null;
+	if (compare != null) {
+	    File fb = new File(compare);
+	    if (!fb.exists()) usage("File " + fb + " does not exist!");
+	    System.out.println("Will compare with config file " + fb);
+	    paraB = new qsim.Parameters(fb);
+	    if (paraB.L != para.L) usage("The config files to compare have different numbers of lanes");
+	}
+	if (threads > 1 && !headless) {
+	    // the lane state printouts from several runs would be mixed up
+	    System.out.println("Running " + threads + " runs at a time; the headless mode is implied");
+	    headless = true;
+	}
 
 	String arrivals = ht.getOption("arrivals", null);
-	StaticArrivalSchedule[][] ss = new StaticArrivalSchedule[runs][];
+	boolean streamArrivals = ht.getOption("streamArrivals", false);
+	final StaticArrivalSchedule[][] ss = new StaticArrivalSchedule[runs][];
+	File dir = null;
 
-	// Read all schedules in advance, to avoid later surprises
 	if (arrivals != null) {
 	    System.out.println("Will use pre-computed arrival schedules from directory " + arrivals + ", instead of generating arrival times dynamically");
-	    File dir = new File(arrivals);
+	    dir = new File(arrivals);
 	    if (!dir.exists() || !dir.isDirectory()) usage(arrivals + " is not a directory");
-	    
-	    for(int k=0; k<runs; k++) {	 
-		f = GenerateArrivals.arrivalFile(dir,k);
-		if (!f.exists()) usage("File " + f +", which is supposed to contain arrival schedule for run no. " + k +", does not exist!");
-		ss[k] = StaticArrivalSchedule.readFile(f, para.L);
+
+	    if (precision > 0) {
+		// We don't know how many runs will be needed, so the schedules
+		// will be read as needed; but the budget can't exceed
+		// the number of schedules available
+		int n = 0;
+		while(n < runs && GenerateArrivals.arrivalFile(dir,n).exists()) n++;
+		if (n==0) usage("Directory " + dir + " contains no arrival schedules");
+		if (n < runs) {
+		    System.out.println("Only " + n + " arrival schedules are available; the maximum number of runs is reduced accordingly");
+		    runs = n;
+		}
+	    } else {
+		for(int k=0; k<runs; k++) {	 
+		    f = GenerateArrivals.arrivalFile(dir,k);
+		    if (!f.exists()) usage("File " + f +", which is supposed to contain arrival schedule for run no. " + k +", does not exist!");
+		    // Read all schedules in advance, to avoid later surprises
+		    if (!streamArrivals) ss[k] = StaticArrivalSchedule.readFile(f, para.L);
+		}
+	    }
+	    if (streamArrivals) {
+		// Only check the schedules in advance; each one is read
+		// while its run is being carried out
+		System.out.println("Will read each run's arrival schedule as the run goes on");
+		for(int k=0; k<runs; k++) {
+		    StaticArrivalSchedule.check(GenerateArrivals.arrivalFile(dir,k), para.L);
+		}
 	    }
 	}
 
 
-	File g = new File(outDirName);
+	final File g = new File(outDirName);
 	checkOutDir(g);
 	
 
-	System.out.println("Will carry out " + runs + " simulation run(s).");
+	if (precision > 0) {
+	    System.out.println("Will carry out simulation runs until the "+(int)(Replication.conf*100)+"% confidence intervals are within " + (precision*100) + "% of the means, but no more than " + runs + " runs" +
+			   (threads>1? ", up to " + threads + " at a time." : "."));
+	} else {
+	    System.out.println("Will carry out " + runs + " simulation run(s)" +
+			   (threads>1? ", up to " + threads + " at a time." : "."));
+	}
 	if (T>0) {
 	    System.out.println("Each run will terminate when all customers have been processed, or at t="+T+", whichever happens sooner.");
 	} else {
 	    System.out.println("Each run will terminate when all customers have been processed.");
 	}
 
+	final NumberFormat nf = new DecimalFormat("000");
+	final Parameters _para = para, _paraB = paraB;
+	final int _runs = runs;
+	final long _seed = seed, _T = T;
+	final boolean _headless = headless, _crn = crn, _antithetic = antithetic, _resume = resume;
+	final double _checkpointSec = checkpointSec;
+	final File _dir = dir;
+	final boolean _streamArrivals = streamArrivals;
+	/* Creates run no. k (and its counterpart, when comparing) */
+	SequentialStopping.Factory factory = new SequentialStopping.Factory() {
+		public Replication[] make(int k) throws IOException {
+		    File af = (_dir != null && _streamArrivals)? GenerateArrivals.arrivalFile(_dir,k) : null;
+		    if (_dir != null && af == null && ss[k]==null) {
+			ss[k] = StaticArrivalSchedule.readFile(GenerateArrivals.arrivalFile(_dir,k), _para.L);
+		    }
+		    File f = new File(g, "queue-"+ nf.format(k)+".dat");
+		    Replication r = new Replication(_para, k, _runs, _seed, _T, ss[k], f, _headless, _crn, _antithetic);
+		    r.setCheckpoint(_checkpointSec, _resume);
+		    if (af != null) r.setArrivalFile(af);
+		    if (_paraB == null) return new Replication[] {r};
+		    f = new File(g, "queue-"+ nf.format(k)+"-b.dat");
+		    Replication rb = new Replication(_paraB, k, _runs, _seed, _T, StaticArrivalSchedule.copy(ss[k]), f, _headless, _crn, _antithetic);
+		    rb.label = " (B)";
+		    rb.setCheckpoint(_checkpointSec, _resume);
+		    if (af != null) rb.setArrivalFile(af);
+		    return new Replication[] {r, rb};
+		}
+	    };
+
+	Vector<Replication> v, vb;
+	if (precision > 0) {
+	    SequentialStopping sq = new SequentialStopping(factory, precision, runs, threads, antithetic, paraB != null);
+	    sq.run();
+	    v = sq.va;
+	    vb = sq.vb;
+	} else {
+	    v = new Vector<Replication>();
+	    vb = new Vector<Replication>();
+	    for(int k=0; k<runs; k++) {
+		Replication[] r = factory.make(k);
+		v.add(r[0]);
+		if (paraB != null) vb.add(r[1]);
+	    }
+	    Vector<Replication> all = new Vector<Replication>(v);
+	    all.addAll(vb);
+	    Replication.runAll(all, threads);
+	}
 
-	NumberFormat nf = new DecimalFormat("000");
-	for(int k=0; k<runs; k++) {
-	    System.out.println("---- Run " +k + " of " + runs);
-	    long now = 0;       
-	    Qsim qsim = new Qsim(para, now, ss[k]);
-
-	    qsim.simulate(T);
-	    f = new File(g, "queue-"+ nf.format(k)+".dat");
-	    System.out.println("Saving log file " + f);
-	    qsim.saveLog(f);
+	System.out.println(Replication.report(v, antithetic));
+	if (paraB != null) {
+	    System.out.println("Config B: " + Replication.report(vb, antithetic));
+	    System.out.println(Replication.compare(v, vb, antithetic));
 	}
 
     }
@@ -478,11 +955,12 @@ public class Qsim {
 	@param direction +1 or -1
     */
     int numberOfLanesToHelp(int mypos, int direction) {
-	for(int n=0; true; n++) {
-	    int k = mypos + (n + 1) * direction;
-	    if (k<0 || k>=lanes.length) return n;
-	    if (!lanes[k].isBroken()) return (n+1)/2;
-	}
+	// the nearest working lane in that direction (-1 or L if none)
+	int k = (direction > 0) ?
+	    Math.min(brokenLanes.nextClearBit(mypos+1), L) :
+	    brokenLanes.previousClearBit(mypos-1);
+	int n = Math.abs(k - mypos) - 1; // the broken lanes in between
+	return (k<0 || k>=L) ? n : (n+1)/2;
     }
 
     /** Generates and saves customer arrival schedule, for future use.
@@ -490,31 +968,29 @@ public class Qsim {
 	and then merges them, arranging them in chronological order
     */
     void generateArrivalSchedule(File f) throws IOException {
-	PrintWriter pw = new PrintWriter(new FileWriter(f));
-	Queue.ArrivalBase[][] a = new Queue.ArrivalBase[L][];
+	long[][] a = new long[L][];
 	for(int j=0; j<L; j++) {
 	    a[j] = lanes[j].generateAllArrivalTimes();
 	}
-	pw.println("# This file contains customer arrival times. Each line is inb the format");
-	pw.println("# t j threat");
-	pw.println("# Where t is the time, j is the (1-based) lane number, threat=0 or 1");
-	pw.println("# The data are for L="+L+" lanes, with " + para.nGenMax + " customers in each one");
-
-	int ptr[] = new int[L];
-	while(true) {
-	    int jmin=-1;
-	    long mint=-1;
+	ScheduleWriter w = new ScheduleWriter(f);
+	try {
+	    GenerateArrivals.writeHeader(w, para);
+	    // the lanes, keyed by the time of their next arrival; ties are
+	    // broken by the lane number
+	    EventHeap h = new EventHeap(L);
+	    int ptr[] = new int[L];
 	    for(int j=0; j<L; j++) {
-		if (ptr[j] >= a[j].length) continue;
-		if (jmin<0 || a[j][ptr[j]].arrivalTime < mint) {
-		    mint = a[j][ptr[jmin = j]].arrivalTime;
-		}
+		if (a[j].length > 0) h.set(j, StaticArrivalSchedule.time(a[j][0]));
+	    }
+	    while(!h.isEmpty()) {
+		int j = h.poll();
+		long b = a[j][ptr[j]++];
+		w.arrival(StaticArrivalSchedule.time(b), j+1, StaticArrivalSchedule.threat(b));
+		if (ptr[j] < a[j].length) h.set(j, StaticArrivalSchedule.time(a[j][ptr[j]]));
 	    }
-	    if (jmin < 0) break; // done
-	    Queue.ArrivalBase x =  a[jmin][ptr[jmin]++];
-	    pw.println(""+ x.arrivalTime+"\t"+ (jmin+1)+"\t"+ (x.threat? 1:0));
+	} finally {
+	    w.close();
 	}
-	pw.close();
     }
    
 }
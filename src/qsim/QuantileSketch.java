@@ -0,0 +1,99 @@
+package qsim;
+
+import java.io.*;
+import java.util.*;
+
+/** A fixed-memory summary of the distribution of a stream of
+    non-negative integer values (e.g. customers' waiting times), from
+    which quantiles can be estimated. Sketches of different streams
+    can be merged, e.g. to summarize all lanes, or all runs of a job.
+
+    <p>The values are counted in a log-linear histogram: values below
+    SUB are counted exactly; above that, each interval [2<sup>e</sup>,
+    2<sup>e+1</sup>) is divided into SUB equal buckets. An estimated
+    quantile is thus within 1/(2*SUB) (about 1.6%) of the true one, in
+    relative terms, no matter how many values there are. The histogram
+    only grows as far as the largest value seen so far requires, and
+    never beyond about 1900 buckets. The minimum and maximum are kept
+    exactly.
+ */
+class QuantileSketch implements Serializable {
+
+    /** The number of buckets per power of 2 */
+    static final int SUB = 32, SUB_BITS = 5;
+
+    private long[] counts = new long[SUB];
+    private long n = 0, min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+
+    /** The bucket in which the value v is counted */
+    private static int bucket(long v) {
+	if (v < SUB) return (int)v;
+	int e = 63 - Long.numberOfLeadingZeros(v); // e >= SUB_BITS
+	int m = (int)(v >>> (e - SUB_BITS)) & (SUB-1);
+	return (e - SUB_BITS + 1)*SUB + m;
+    }
+
+    /** The smallest value counted in the bucket i */
+    private static long bucketStart(int i) {
+	if (i < 2*SUB) return i;
+	int e = i/SUB + SUB_BITS - 1;
+	return (long)(SUB + i%SUB) << (e - SUB_BITS);
+    }
+
+    void add(long v) {
+	if (v < 0) throw new IllegalArgumentException("Negative value " + v);
+	int i = bucket(v);
+	if (i >= counts.length) counts = Arrays.copyOf(counts, Math.max(i+1, 2*counts.length));
+	counts[i]++;
+	n++;
+	if (v < min) min = v;
+	if (v > max) max = v;
+    }
+
+    /** Adds all values counted in another sketch to this one */
+    void merge(QuantileSketch o) {
+	if (o.counts.length > counts.length) counts = Arrays.copyOf(counts, o.counts.length);
+	for(int i=0; i<o.counts.length; i++) counts[i] += o.counts[i];
+	n += o.n;
+	min = Math.min(min, o.min);
+	max = Math.max(max, o.max);
+    }
+
+    long count() { return n; }
+    long max() { return max; }
+
+    /** Estimates the q-th quantile (0 &lt; q &le; 1): the value of rank
+	ceil(q*n) in the sorted sequence, approximated by the middle of
+	its bucket.
+	@return the estimate, or NaN if no values have been counted
+     */
+    double quantile(double q) {
+	if (n == 0) return Double.NaN;
+	long rank = Math.max(1, (long)Math.ceil(q * n));
+	if (rank >= n) return max;
+	long sum = 0;
+	for(int i=0; i<counts.length; i++) {
+	    sum += counts[i];
+	    if (sum >= rank) {
+		long a = bucketStart(i), b = bucketStart(i+1) - 1;
+		double mid = (a + b) / 2.0;
+		return Math.max(min, Math.min(max, mid));
+	    }
+	}
+	return max;
+    }
+
+    /** The quantiles shown in reports */
+    static final double[] reportLevels = {0.5, 0.9, 0.99};
+
+    /** Describes the distribution as "n=..., p50=..., p90=..., p99=..., max=..." */
+    public String toString() {
+	if (n == 0) return "n=0";
+	StringBuffer b = new StringBuffer("n=" + n);
+	for(double q: reportLevels) {
+	    b.append(", p" + (int)Math.round(q*100) + "=" + Math.round(quantile(q)));
+	}
+	b.append(", max=" + max);
+	return b.toString();
+    }
+}
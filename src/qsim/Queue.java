@@ -2,95 +2,149 @@ package qsim;
 
 import java.io.*;
 import java.util.*;
+import java.util.random.RandomGenerator;
 
-/** A Queue object simulates a single screening lane. */
-public class Queue {
+/** A Queue object simulates a single screening lane.
+
+    <p>The state of a lane is owned by the thread running the
+    simulation, and is accessed without locking. Other threads (such as
+    the GUI) must not read it directly; instead, they use the immutable
+    {@link Snapshot} most recently published by the simulation thread
+    ({@link #getSnapshot()}). Changes requested by other threads (such
+    as breaking or fixing a lane) are made by the simulation thread at
+    a safe point (see {@link Qsim#setBroken(int, boolean)}).
+ */
+public class Queue implements Serializable {
 
     static final long NEVER = Long.MIN_VALUE;
 
     final Parameters para;
 
-    static public class ArrivalBase {
-	final boolean threat;
-	/** Simulation time of the customer's arrival */
-	final long arrivalTime;
-	ArrivalBase(boolean _threat, long _arrivalTime) {
-	    threat = _threat;
-	    arrivalTime = _arrivalTime;
-	}
+    /** The label of a customer in the lane display: "o" or "x" for a
+	regular customer or a threat, "O" or "X" if he has been
+	transferred from another lane */
+    static String label(boolean threat, boolean transferred) {
+	return 
+	    transferred?
+	    (threat? "X" : "O"):
+	    (threat? "x" : "o");
     }
 
-    /** Encapsulates the information about a customer and his progress
-	through the screening lane */
-    static public class Arrival extends ArrivalBase {
-	public String getLabel() {
-	    return 
-		transferred?
-		(threat? "X" : "O"):
-		(threat? "x" : "o");
-	}
-	
-	/** The ScreenerProfile becomes associated with the Arrival
-	    object once processing starts, and remains associated with
-	    it as a permanent record */
-	ScreenerProfile sp;
-	/** Used as a reference to the screen profile in myprofiles[] */
-	int spID; 
-	boolean isBeingScreened() { return sp!=null; }
-	/** How much time has elapsed since screening started on this customer,
-	    as fraction of the maximum time that screening may take.
-	    @return a value in the range [0,1]
-	*/
-	double hasBeenScreenedForHowLong(long now) { 
-	    return (double)(now - screenStartTime) / (double)sp.H;
-	}
-	/** Is set to true after screening has completed, if the arriving 
-	    customer was a "threat" and was detected as such */
-	boolean detected=false;
-	long screenStartTime;
-	/** Expected time of screening completion. (Is set when screening starts) */
-	long screenEndTime = -1;
-	Arrival(boolean _threat, long _arrivalTime) {
-	    super( _threat, _arrivalTime);
-	}
-	Arrival(ArrivalBase b) {
-	    super( b.threat, b.arrivalTime);
-	}
-	/** This will be set to true if the customer has been ever transferred
-	    between lanes */
-	boolean transferred = false;
-	public String toString() {
-	    return "["+getLabel()+"] Arrives at " + arrivalTime + 
-		(sp==null ? ", never scanned" :
-		 ", scanned at [" +  screenStartTime + " : " + screenEndTime + 
-"]");
+    /** All profiles supported by this lane's screening device */
+    ScreenerProfile myprofiles[];
+
+    /** The random number generators for this lane's interarrival
+	times, threats, screening times, and detection. (Unless the
+	common random numbers mode is used, they all are the same
+	generator shared by all lanes) */
+    private RandomGenerator arrivalGen, threatGen, serviceGen, detectionGen;
+
+    /** The customers waiting in line to be processed, stored as a
+	ring buffer of primitive arrays (so that no objects are created
+	as customers arrive and leave): the i-th customer in line
+	(0-based) is at position (first+i) &amp; (capacity-1). The first
+	customer in line may be currently being processed; the state of
+	his screening is kept in the fields below, as no one else's
+	screening can be in progress. */
+    private long[] qArrivalTime = new long[16];
+    /** Each customer's THREAT and TRANSFERRED flags */
+    private byte[] qFlags = new byte[16];
+    private int qFirst = 0, qSize = 0;
+    static final byte THREAT = 1, TRANSFERRED = 2;
+
+    /** Is the first customer in line being screened? */
+    private boolean screening = false;
+    /** The screening profile (an index into myprofiles), and the start
+	and the expected end of the screening of the first customer in
+	line; only meaningful if screening==true */
+    private int screenSpID;
+    private long screenStartTime, screenEndTime = -1;
+
+    int waitingCnt() { return qSize; }
+
+    private int qIndex(int i) {
+	return (qFirst + i) & (qArrivalTime.length-1);
+    }
+
+    /** Doubles the capacity of the ring buffer */
+    private void qGrow() {
+	int cap = qArrivalTime.length;
+	long[] t = new long[2*cap];
+	byte[] f = new byte[2*cap];
+	for(int i=0; i<qSize; i++) {
+	    t[i] = qArrivalTime[qIndex(i)];
+	    f[i] = qFlags[qIndex(i)];
 	}
+	qArrivalTime = t;
+	qFlags = f;
+	qFirst = 0;
     }
 
-    /** All profiles supported by this lane's screening device */
-    ScreenerProfile myprofiles[];
+    /** Puts a customer at the end of the line */
+    private void qAddLast(long arrivalTime, byte flags) {
+	if (qSize == qArrivalTime.length) qGrow();
+	int k = qIndex(qSize++);
+	qArrivalTime[k] = arrivalTime;
+	qFlags[k] = flags;
+    }
+
+    /** Puts a customer at the head of the line */
+    private void qAddFirst(long arrivalTime, byte flags) {
+	if (qSize == qArrivalTime.length) qGrow();
+	qFirst = (qFirst - 1) & (qArrivalTime.length-1);
+	qSize++;
+	qArrivalTime[qFirst] = arrivalTime;
+	qFlags[qFirst] = flags;
+    }
 
-    /** Includes those waiting in line to be processed. The first
-	element of the list may be currently being processed */
-    LinkedList<Arrival> waiting = new LinkedList<Arrival>();
-    int waitingCnt() { return waiting.size(); }
+    /** Removes the first customer in line */
+    private void qRemoveFirst() {
+	qFirst = qIndex(1);
+	qSize--;
+    }
+
+    /** Describes the first customer in line (for error messages) */
+    private String describeFirst() {
+	if (qSize==0) return "none";
+	int k = qIndex(0);
+	return "["+label((qFlags[k] & THREAT)!=0, (qFlags[k] & TRANSFERRED)!=0)+"] Arrives at " + qArrivalTime[k] + 
+	    (!screening ? ", never scanned" :
+	     ", scanned at [" +  screenStartTime + " : " + screenEndTime + "]");
+    }
 
     /** Different ways of measuring the queue length: with or without the 
 	customer currently being screeened */
-    synchronized double queueLength() { 
-	double w = waiting.size(); 
-	Arrival a = waiting.peek();
-	if (para.countCurrentlyScreened==Parameters.CountCurrentlyScreened.YES || w==0 || !a.isBeingScreened()) {
+    public double queueLength() { 
+	double w = qSize; 
+	if (para.countCurrentlyScreened==Parameters.CountCurrentlyScreened.YES || w==0 || !screening) {
 	} else if (para.countCurrentlyScreened==Parameters.CountCurrentlyScreened.NO) {
 	    w = w-1;
 	} else if (para.countCurrentlyScreened==Parameters.CountCurrentlyScreened.PARTIALLY) {
 	    long now = parent.getNow();
-	    double t = a.hasBeenScreenedForHowLong(now);
-	    if (t<0 || t>1) throw new AssertionError("Invalid screening time detected: " + t + " for customer "+ a +"; now=" + now); 
+	    // how much time has elapsed since screening started on this
+	    // customer, as fraction of the maximum time that screening may take
+	    double t = (double)(now - screenStartTime) / (double)myprofiles[screenSpID].H;
+	    if (t<0 || t>1) throw new AssertionError("Invalid screening time detected: " + t + " for customer "+ describeFirst() +"; now=" + now); 
 	    w = w-t;
 	}
 	return w;
     }
+
+    /** An integer approximation of queueLength(): the two are equal,
+	except in the PARTIALLY mode while a customer is being screened,
+	when queueLength() is within [queueLengthKey()-1,
+	queueLengthKey()]. Unlike queueLength(), it only changes when
+	customers arrive, leave, or start being screened. */
+    int queueLengthKey() {
+	if (para.countCurrentlyScreened==Parameters.CountCurrentlyScreened.NO && screening) return qSize-1;
+	return qSize;
+    }
+
+    /** Lets the policy know that the queue length (or the broken
+	status) of this lane has changed */
+    private void changed() {
+	if (parent.policy != null) parent.policy.laneChanged(this);
+    }
  
     /** This parameter controls how frequently a working screening
 	lane can accept customers from nearby broken lanes. (1
@@ -105,11 +159,6 @@ public class Queue {
 	-1, if there are several broken lanes next to each other)  */
     int lastBrokenLaneDelta= 0;
 
-    /** Those whose processing has been completed already */
-    Vector<Arrival> completed = new Vector<Arrival>();
-    /** Same as allCnt */
-    int doneCnt() { return completed.size(); }
-
     /** Back link to the main simulator object */
     private Qsim parent;
 
@@ -117,7 +166,7 @@ public class Queue {
 	broken lanes) */
     private final Queue[] allQueues;
     /** This lane's position in the array of all lanes */
-    private final int mypos;
+    final int mypos;
 
     /** Creates a new lane, to be included into a Qsim object.
 	
@@ -131,6 +180,7 @@ public class Queue {
 	allQueues = parent.lanes;
 	mypos = _mypos;
 	sched = _sched;
+	initGenerators();
 
 	if (para.profiles==null || para.profiles.length==0) throw new IllegalArgumentException("No screening profile is defined in the parameter set!");
 
@@ -143,19 +193,43 @@ public class Queue {
 	    }
 	}
 
-	pending = nextArrival(now);
+	nextArrival(now);
 
 	screenedCntByProfile = new int[myprofiles.length];
 	currentProfileID = 0;
+	publish();
+    }
+
+    /** Obtains this lane's random number generators from the parent's
+	streams. Called from the constructor, and again when the parent
+	is given new streams. */
+    void initGenerators() {
+	arrivalGen = parent.streams.get(mypos, RandomStreams.Purpose.INTERARRIVAL);
+	threatGen = parent.streams.get(mypos, RandomStreams.Purpose.THREAT);
+	serviceGen = parent.streams.get(mypos, RandomStreams.Purpose.SERVICE);
+	detectionGen = parent.streams.get(mypos, RandomStreams.Purpose.DETECTION);
+	fastArrivals = fastArrivals(para, parent.streams);
     }
 
-    /** The one not in queue yet.  */
-    Arrival pending = null;
+    /** The next customer, not in queue yet: whether there is one, his
+	arrival time, and whether he is a threat  */
+    private boolean hasPending = false;
+    private long pendingTime;
+    private boolean pendingThreat;
+
+    /** The record of the most recently completed customer, given to the
+	completion sink (and reused for the next one) */
+    private final CompletionSink.Record done = new CompletionSink.Record();
 
     private boolean broken=false;
 
     public boolean isBroken() { return	broken;    }
-    public void setBroken(boolean b) {	broken = b;    }
+    public void setBroken(boolean b) {
+	if (b == broken) return;
+	broken = b;
+	changed();
+	parent.brokenStatusChanged(mypos);
+    }
 
     /** How many customers have been generated by the arrival generator */
     int genCnt=0;
@@ -168,12 +242,26 @@ public class Queue {
     int currentProfileID = 0; //new ScreenerProfile(10,15,20,0.75);
 
     /** How many customers have been screened by each profile? These
-	values sum to doneCnt */
+	values sum to allCnt */
     int[] screenedCntByProfile;
 
-    synchronized boolean isIdle() {
-	Arrival b = waiting.peek(); // the one being screened now 
-	return (b == null || !b.isBeingScreened());
+    /** The number of profiles supported by this lane */
+    public int getProfileCount() {
+	return myprofiles.length;
+    }
+
+    /** The j-th profile supported by this lane */
+    public ScreenerProfile getProfile(int j) {
+	return myprofiles[j];
+    }
+
+    /** How many customers have been screened with the j-th profile */
+    public int getScreenedCount(int j) {
+	return screenedCntByProfile[j];
+    }
+
+    boolean isIdle() {
+	return !screening;
     }
 
     /** Generates the arrival time of the next customer in this line,
@@ -181,11 +269,54 @@ public class Queue {
 	itself may be a function of time). Used for arrival list
 	generation.  */
     final long nextArrivalTime(long now) {
-	double p = Qsim.gen.nextDouble();
+	return arrivalTime(para, arrivalGen, fastArrivals, now);
+    }
+
+    /** Are the interarrival times generated by the ziggurat method
+	(variates=FAST)? */
+    private boolean fastArrivals;
+
+    /** Are the interarrival times generated by the ziggurat method,
+	with the specified streams? Only with variates=FAST, and not
+	with antithetic streams, since the ziggurat does not turn
+	mirrored random numbers into mirrored variates, as the
+	logarithm does. */
+    static boolean fastArrivals(Parameters para, RandomStreams streams) {
+	return para.variates == Parameters.Variates.FAST && !streams.antithetic;
+    }
+
+    /** The arrival time of the customer following one who has
+	arrived at the time now, with exponentially distributed
+	interarrival times (drawn from arrivalGen) with the pre-set
+	lambda.
+	@param fast As per {@link #fastArrivals(Parameters, RandomStreams)}
+    */
+    static long arrivalTime(Parameters para, RandomGenerator arrivalGen, boolean fast, long now) {
+	if (fast) return now + (long)(arrivalGen.nextExponential()/para.currentLambda(now));
+	double p = arrivalGen.nextDouble();
 	double t = -Math.log(1-p)/para.currentLambda(now);
 	return now + (long)t;
     }
 
+    /** Randomly decides whether a customer is a threat */
+    static boolean threat(Parameters para, RandomGenerator threatGen) {
+	return threatGen.nextDouble() < para.fracBad;
+    }
+
+    /** Draws the customer following one who has arrived at the time
+	now, as a lane generating its customers dynamically does: first
+	whether he is a threat, then his arrival time. {@link
+	ArrivalGenerator} draws the customers of a schedule file in the
+	same way.
+	@param fast As per {@link #fastArrivals(Parameters, RandomStreams)}
+	@return The customer, packed as per {@link StaticArrivalSchedule#pack(long, boolean)}
+    */
+    static long drawCustomer(Parameters para, RandomGenerator threatGen,
+			     RandomGenerator arrivalGen, boolean fast, long now) {
+	boolean threat = threat(para, threatGen);
+	return StaticArrivalSchedule.pack(arrivalTime(para, arrivalGen, fast, now), threat);
+    }
+
     /** This is used if we're using a pre-computed arrival 
 	schedule, loaded from a file. */
     StaticArrivalSchedule sched = null;
@@ -204,48 +335,72 @@ public class Queue {
     }
 
     private boolean randomThreat() {
-	return Qsim.gen.nextDouble() < para.fracBad;
+	return threat(para, threatGen);
     }
 
-    /** Returns a newly generated Arrival object, or null (if all
-	planned arrivals have already been generated). The arrival
-	data are obtained from a pre-read arrival schedule file (if
-	we're using them on this run), or are generated on-the-fly as
-	per the Poisson distribution.
+    /** Generates the next customer (pendingTime, pendingThreat), unless
+	all planned arrivals have already been generated, in which case
+	hasPending is set to false. The arrival data are obtained from a
+	pre-read arrival schedule file (if we're using them on this
+	run), or are generated on-the-fly as per the Poisson
+	distribution.
     */
-    Arrival nextArrival(long now) {
-	if (finishedGeneration()) return null;
-        Arrival a = (sched != null)? new Arrival( sched.next()) : 
-	    new Arrival( randomThreat(), nextArrivalTime(now));
+    private void nextArrival(long now) {
+	hasPending = !finishedGeneration();
+	if (!hasPending) return;
+	long b = (sched != null) ? sched.next() :
+	    drawCustomer(para, threatGen, arrivalGen, fastArrivals, now);
+	pendingThreat = StaticArrivalSchedule.threat(b);
+	pendingTime = StaticArrivalSchedule.time(b);
 	genCnt ++;
-	return a;
     }
 
-    /** Prepares the list of para.nGenMax arrival times, to save in a file for
-	use in a future run */
-    ArrivalBase[] generateAllArrivalTimes() {
+    /** Prepares the list of para.nGenMax arrivals, to save in a file for
+	use in a future run.
+	@return the arrivals, packed as per {@link StaticArrivalSchedule#pack(long, boolean)}
+    */
+    long[] generateAllArrivalTimes() {
 	if (para.nGenMax <= 0) throw new IllegalArgumentException("Needs to specify the number of customers (nGenMax) in the config file!");
 	long t = 0;
-	ArrivalBase[] w = new ArrivalBase[para.nGenMax]; 
+	long[] w = new long[para.nGenMax]; 
 	for(int i=0; i<para.nGenMax; i++) {
 	    t =  nextArrivalTime(t);
-	    w[i] = new ArrivalBase( randomThreat(), t);
+	    w[i] = StaticArrivalSchedule.pack(t, randomThreat());
 	}
 	return w;
     }
 
 
-    /** @param b The currently processed customer, already popped out of the queue */
-    private void completeScreening(Arrival b) {
+    /** Completes the screening of the first customer in line, and
+	removes him from the line */
+    private void completeScreening(long now) {
+	int k = qIndex(0);
+	boolean threat = (qFlags[k] & THREAT) != 0;
+	ScreenerProfile sp = myprofiles[screenSpID];
 	allCnt++;
-	screenedCntByProfile[ b.spID] ++;
-
-	if (b.threat) {
-	    b.detected = !broken && b.sp.detects();
-	    if (b.detected) detectedCnt++;
-	    else missedCnt++;			      
+	screenedCntByProfile[ screenSpID] ++;
+	parent.sumLen--;
+	parent.sumDone++;
+
+	boolean detected = false;
+	if (threat) {
+	    detected = !broken && sp.detects(detectionGen);
+	    if (detected) { detectedCnt++; parent.sumDet++; }
+	    else { missedCnt++; parent.sumMissed++; }
 	}
-	completed.addElement(b);
+	done.lane = mypos;
+	done.arrivalTime = qArrivalTime[k];
+	done.screenStartTime = screenStartTime;
+	done.completionTime = now;
+	done.threat = threat;
+	done.detected = detected;
+	done.transferred = (qFlags[k] & TRANSFERRED) != 0;
+	done.spID = screenSpID;
+	done.profile = para.profileIndex(mypos, screenSpID);
+	qRemoveFirst();
+	screening = false;
+	changed();
+	parent.completionSink.completed(done);
 	if (ownPatronCnt>0) ownPatronCnt--;
     }
 
@@ -256,34 +411,38 @@ public class Queue {
 	profile that's acceptable.
      */
     private int chooseProfile() {
-	return parent.policy.chooseProfile(mypos, allQueues);
+	return parent.policy.timedChooseProfile(mypos, allQueues);
     }
 
-    /** Labels the specified customer as one undergoing screening. 
+    /** Starts screening the first customer in line.
 	@param now Simulated time when screeening starts
      */
-    private void startScreening(Arrival b, long now) {
+    private void startScreening(long now) {
 	if (broken) return;
 	
 	if (myprofiles==null || myprofiles.length==0) throw new IllegalArgumentException("No screening profiles are available for this lane");
 	currentProfileID = chooseProfile();
-	b.sp = myprofiles[b.spID=currentProfileID];
-	b.screenStartTime = now;
-	b.screenEndTime = now + (long)b.sp.serviceTime();
+	screenSpID = currentProfileID;
+	screening = true;
+	screenStartTime = now;
+	ScreenerProfile sp = myprofiles[screenSpID];
+	screenEndTime = now + ((para.variates == Parameters.Variates.FAST) ?
+			       sp.fastServiceTime(serviceGen) :
+			       (long)sp.serviceTime(serviceGen));
+	changed();
     }
 
  
   /** Looks up the next event in this lane that needs to be attended to.
       @return Time of that event, or NEVER if none is expected
    */
-    synchronized long  findNextActivityTime() {       
-	Arrival b = waiting.peek(); // the one being screened now 
-	if (b != null && b.isBeingScreened() && (pending==null || b.screenEndTime<=pending.arrivalTime)) {
+    long  findNextActivityTime() {       
+	if (screening && (!hasPending || screenEndTime<=pendingTime)) {
 	    // the next activity is the completion of the current screening
-	    return b.screenEndTime;
-	} else if (pending !=null) {
+	    return screenEndTime;
+	} else if (hasPending) {
 	    // the next activity is the arrival of the next customer
-	    return pending.arrivalTime;
+	    return pendingTime;
 	} else {
 	    return NEVER;
 	}
@@ -309,23 +468,92 @@ public class Queue {
        @param maxlen If positive, truncate the description to approximately this length
     */
     public String describeQueue2(boolean html, int maxlen) {
-	StringBuffer b=new StringBuffer();	
-	//	String status = broken? "X" : currentProfileID==0? "F" : 
-	//	    currentProfileID==1? "S" : ""+(currentProfileID+1);
-	b.append(statusLabel() + ":" + ownPatronCnt + " ");
-	int len = b.length();
-	boolean needToTruncate = (maxlen > 0 && len + waiting.size() > maxlen);
-	int breakLen = (needToTruncate && maxlen > 10) ? maxlen - 7 : 0;
-	boolean broke=false;
-	for(Arrival a: waiting) {
-	    String z=a.getLabel();
-	    len += z.length();
-	    if (breakLen > 0 && len > breakLen) { broke=true; break;}
-	    if (html && a.isBeingScreened()) z= "<b><u>" + z + "</u></b>";
-	    b.append(z);
+	return new Snapshot(this, qSize).describe(html, maxlen);
+    }
+
+    /** An immutable picture of the lane's state at some moment, which
+	can be read by any thread */
+    public static class Snapshot {
+	/** The simulation time when the snapshot was taken */
+	public final long now;
+	public final boolean broken;
+	/** The number of customers in line, including the one being
+	    screened, if any */
+	public final int waitingCnt;
+	/** Is the first customer in line being screened? */
+	public final boolean screening;
+	public final int arvCnt, allCnt, detectedCnt, missedCnt;
+	private final String status;
+	private final int ownPatronCnt;
+	/** The labels of (up to a certain number of) the first
+	    customers in line */
+	private final String labels;
+
+	/** @param maxShown How many customers' labels to include */
+	private Snapshot(Queue q, int maxShown) {
+	    now = q.parent.getNow();
+	    broken = q.broken;
+	    waitingCnt = q.qSize;
+	    screening = q.screening;
+	    arvCnt = q.arvCnt;
+	    allCnt = q.allCnt;
+	    detectedCnt = q.detectedCnt;
+	    missedCnt = q.missedCnt;
+	    status = q.statusLabel();
+	    ownPatronCnt = q.ownPatronCnt;
+	    int n = Math.min(q.qSize, maxShown);
+	    char[] c = new char[n];
+	    for(int i=0; i<n; i++) {
+		int k = q.qIndex(i);
+		c[i] = label((q.qFlags[k] & THREAT)!=0, (q.qFlags[k] & TRANSFERRED)!=0).charAt(0);
+	    }
+	    labels = new String(c);
+	}
+
+	/** Describes the lane: its status, followed by the labels of
+	    the customers in line.
+	    @param maxlen If positive, truncate the description to approximately this length
+	*/
+	public String describe(boolean html, int maxlen) {
+	    StringBuffer b=new StringBuffer();	
+	    b.append(status + ":" + ownPatronCnt + " ");
+	    int len = b.length();
+	    boolean needToTruncate = (maxlen > 0 && len + waitingCnt > maxlen);
+	    int breakLen = (needToTruncate && maxlen > 10) ? maxlen - 7 : 0;
+	    boolean broke=false;
+	    for(int i=0; i<labels.length(); i++) {
+		String z=labels.substring(i, i+1);
+		len += z.length();
+		if (breakLen > 0 && len > breakLen) { broke=true; break;}
+		if (html && i==0 && screening) z= "<b><u>" + z + "</u></b>";
+		b.append(z);
+	    }
+	    if (broke || labels.length() < waitingCnt) b.append("... " + waitingCnt);
+	    return b.toString();
 	}
-	if (broke) b.append("... " + waiting.size());
-	return b.toString();
+    }
+
+    /** How many customers' labels are included in published snapshots;
+	this is more than a lane display can show */
+    static final int SHOWN = 1000;
+
+    /** The most recently published snapshot. It is not saved; a new
+	one is published when the simulator is read from a checkpoint (or
+	copied for a forecast) */
+    private transient volatile Snapshot snapshot;
+
+    /** Publishes a snapshot of the current state of the lane. Only to be
+	called by the simulation thread.
+	@return the new snapshot
+     */
+    Snapshot publish() {
+	return snapshot = new Snapshot(this, SHOWN);
+    }
+
+    /** The snapshot of the lane most recently published by the
+	simulation thread. May be called from any thread. */
+    public Snapshot getSnapshot() {
+	return snapshot;
     }
 
     /** Checks if this lane wants to give its first customer to 
@@ -333,14 +561,20 @@ public class Queue {
 	should have customers in its queue, and the first customer
 	should not be being processed at this lane (as the last customer
 	who is still processed by the already-broken lane).
-	If it does, removes the first waiting customer from the
-	queue and returns it.
+	If it does, moves the first waiting customer from this
+	queue to the head of the other lane's queue, marking him as
+	transferred.
+	@param to The lane that takes the customer
+	@return true if a customer has been transferred
     */
-    synchronized Arrival giveOnePatron() {
-	if (!broken || waitingCnt()==0) return null;
-	Arrival a = waiting.peek();
-	if (a.isBeingScreened()) return null;
-	return waiting.pop();
+    boolean giveOnePatron(Queue to) {
+	if (!broken || qSize==0 || screening) return false;
+	int k = qIndex(0);
+	to.qAddFirst(qArrivalTime[k], (byte)(qFlags[k] | TRANSFERRED));
+	qRemoveFirst();
+	changed();
+	to.changed();
+	return true;
     }
 
     /** 
@@ -355,69 +589,63 @@ public class Queue {
 	
 	@return true if a customer has indeed been transferred from a neighboring lane
     */
-    private synchronized boolean helpNeighbors() {
+    private boolean helpNeighbors() {
 	if (broken) return false;
-	if (waitingCnt()>0 && waiting.peek().isBeingScreened()) return false;
+	if (screening) return false;
 	if (waitingCnt()>0 && ownPatronCnt>0) return false;
 
-	int delta[] =  deltaList(lastBrokenLaneDelta);
-	for(int j=0; j<delta.length; j++) {
-	    int bPos = mypos + delta[j];
-	    Arrival a = allQueues[bPos].giveOnePatron();
-	    if (a != null) {
-		waiting.push(a);
-		a.transferred = true;
-		lastBrokenLaneDelta = delta[j];
-		ownPatronCnt = ownPatronCnt0;
-		return true;
-	    }
-	}
-	return false;
-    }
-  
-    /** Returns an array of deltas, i.e. pointers to nearby lanes from
-	which we can try getting stuck customers. */
-    private int[] deltaList(int delta0) {
-	int direction = (delta0>=0? 1: -1);
-	int n1 = parent.numberOfLanesToHelp(mypos, direction);
-	int n2 = parent.numberOfLanesToHelp(mypos, -direction);
-	int z[] = new int[n1+n2];
-	int k=0;
-	// continue in the original direction
+	// The nearby broken lanes from which we can try getting stuck
+	// customers, visited in this order: continuing in the direction
+	// of the last transfer, then in the other direction, then in the
+	// original direction again, from the nearest lane
+	final int delta0 = lastBrokenLaneDelta;
+	final int direction = (delta0>=0? 1: -1);
+	final int n1 = parent.numberOfLanesToHelp(mypos, direction);
+	final int n2 = parent.numberOfLanesToHelp(mypos, -direction);
 	for(int j=Math.abs(delta0)+1; j<=n1; j++) {
-	    z[k++] = j * direction; 
+	    if (takeFrom(j * direction)) return true;
 	}
-	// change direction
 	for(int j=1; j<=n2; j++) {
-	    z[k++] =  -j * direction; 
+	    if (takeFrom(-j * direction)) return true;
 	}
-	// change direction again
 	for(int j=1; j<=Math.abs(delta0) && j<=n1; j++) {
-	    z[k++] =  j * direction; 
+	    if (takeFrom(j * direction)) return true;
 	}
-	return z;
+	return false;
+    }
+
+    /** Tries to get a customer from the lane at the specified
+	distance from this one
+	@return true if a customer has been transferred
+     */
+    private boolean takeFrom(int delta) {
+	if (!allQueues[mypos + delta].giveOnePatron(this)) return false;
+	lastBrokenLaneDelta = delta;
+	ownPatronCnt = ownPatronCnt0;
+	return true;
     }
     
 
     /** If a customer arrives right now, handle that 
 	@return true if an arrival indeed took place
      */
-    synchronized boolean handleImmediateArrival(long now) {
-	if (pending == null || now < pending.arrivalTime) return false;
-	if (now > pending.arrivalTime)  throw new IllegalArgumentException("Oy vey, it's t=" + now + " already, and we have missed the arrival time for A= " + pending);
-	waiting.add(pending);
+    boolean handleImmediateArrival(long now) {
+	if (!hasPending || now < pendingTime) return false;
+	if (now > pendingTime)  throw new IllegalArgumentException("Oy vey, it's t=" + now + " already, and we have missed the arrival time for A= [" + label(pendingThreat, false) + "] Arrives at " + pendingTime);
+	qAddLast(pendingTime, pendingThreat? THREAT : 0);
+	changed();
 	arvCnt++;
-	pending = nextArrival(now);
+	parent.sumArv++;
+	parent.sumLen++;
+	nextArrival(now);
 	return true;
    }
 
     /** Completes a screening if it's happening right now */
-    synchronized boolean handleImmediateScreeningCompletion(long now) {
-       Arrival a = waiting.peek();
-       if (a == null || !a.isBeingScreened() || a.screenEndTime > now) return false;
-       if (a.screenEndTime < now)  throw new IllegalArgumentException("Oy vey, it's t=" + now + " already, and we have missed the screening completion time for A=" + pending);
-       waiting.pop();
-       completeScreening(a);
+    boolean handleImmediateScreeningCompletion(long now) {
+       if (!screening || screenEndTime > now) return false;
+       if (screenEndTime < now)  throw new IllegalArgumentException("Oy vey, it's t=" + now + " already, and we have missed the screening completion time for A=" + describeFirst());
+       completeScreening(now);
        return true;
     }
 
@@ -425,12 +653,11 @@ public class Queue {
 	broken neighbor), engage it into this work
 	@return true if a new screening indeed starts
      */
-    synchronized boolean handleIdle(long now) {
+    boolean handleIdle(long now) {
 	if (broken) return false;
 	helpNeighbors(); // insert a customer from a neighbor, if appropriate
-	Arrival a = waiting.peek();
-	if (a==null || a.isBeingScreened()) return false;
-	startScreening(a, now);	
+	if (qSize==0 || screening) return false;
+	startScreening(now);	
 	return true;
     }
 
@@ -0,0 +1,218 @@
+package qsim;
+
+import java.io.*;
+import java.util.*;
+import java.util.random.RandomGenerator;
+
+/** The sources of random numbers for one simulation run.
+
+    <p>By default, all random numbers in a run (interarrival times,
+    threats, screening times, detection) come from a single
+    generator, in the order in which the simulator needs them.
+
+    <p>In the "common random numbers" (CRN) mode, each lane has a
+    separate generator for each of these purposes, each one seeded
+    from the run's seed, the lane number, and the purpose. Thus two
+    runs with the same seed but, e.g., different profile selection
+    policies see exactly the same customers (arrival times and
+    threats) in each lane, and the same sequence of random numbers
+    for screening times and detection, even though the screening goes
+    differently. Comparing such runs pairwise removes most of the noise
+    from the comparison.
+
+    <p>With the antithetic option, every number u drawn from a
+    generator is replaced with its mirror image 1-u (on the 2<sup>-53</sup>
+    grid on which the generators produce doubles). A run using
+    antithetic streams, paired with a normal run with the same seed,
+    tends to err in the opposite direction, so the average of the
+    two has a lower variance than that of two independent runs.
+
+    <p>The generator algorithm is selected by the configuration
+    parameter "rng" (see {@link Parameters.Rng}). The original one,
+    java.util.Random, has a 48-bit state, and updates it atomically
+    on every call. The others are implemented here, rather than taken
+    from java.util.random, because the simulator's state (and hence
+    the generators') must be serializable, for checkpoints and
+    forecasts; they produce the same sequences of longs and doubles
+    as the JDK's generators of the same names, created with the same
+    seed. Whatever the algorithm, the seed is all that is needed to
+    reproduce a run.
+ */
+public class RandomStreams implements Serializable {
+
+    /** What the random numbers are used for */
+    enum Purpose {
+	INTERARRIVAL, THREAT, SERVICE, DETECTION;
+    }
+
+    final long seed;
+    /** Are there separate generators for each lane and purpose? */
+    final boolean crn;
+    /** Are the numbers mirrored? */
+    final boolean antithetic;
+    /** The generator algorithm */
+    final Parameters.Rng rng;
+    /** The single generator used when not in the CRN mode */
+    private final RandomGenerator shared;
+
+    /** Creates a single generator (java.util.Random), used for everything */
+    public RandomStreams(long _seed) {
+	this(_seed, false, false);
+    }
+
+    public RandomStreams(long _seed, boolean _crn, boolean _antithetic) {
+	this(_seed, _crn, _antithetic, Parameters.Rng.RANDOM);
+    }
+
+    public RandomStreams(long _seed, boolean _crn, boolean _antithetic,
+			 Parameters.Rng _rng) {
+	seed = _seed;
+	crn = _crn;
+	antithetic = _antithetic;
+	rng = _rng;
+	shared = crn? null : create(seed);
+    }
+
+    /** Returns the generator to be used by the specified lane for
+	the specified purpose. In the CRN mode, a new generator is
+	created on each call, so each lane should call this method once
+	for each purpose. */
+    RandomGenerator get(int lane, Purpose purpose) {
+	if (!crn) return shared;
+	long s = mix64(mix64(seed + (lane+1) * 0x9E3779B97F4A7C15L) + purpose.ordinal());
+	return create(s);
+    }
+
+    private RandomGenerator create(long s) {
+	RandomGenerator g;
+	switch(rng) {
+	case L64X128MIX: g = new L64X128Mix(s); break;
+	case XOROSHIRO128PP: g = new Xoroshiro128PlusPlus(s); break;
+	case SPLITMIX64: g = new SplitMix64(s); break;
+	default: g = new Random(s);
+	}
+	return antithetic? new Antithetic(g) : g;
+    }
+
+    /** The SplitMix64 finalizer: scrambles the bits of a long. Used to
+	derive uncorrelated seeds from related ones (e.g. consecutive
+	run numbers). */
+    static long mix64(long z) {
+	z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+	z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+	return z ^ (z >>> 31);
+    }
+
+    /** A generator producing the mirror images of the numbers produced
+	by another generator. */
+    static class Antithetic implements RandomGenerator, Serializable {
+	final RandomGenerator base;
+	Antithetic(RandomGenerator _base) { base = _base; }
+
+	/** Doubles are produced as m*2<sup>-53</sup>, with an integer
+	    0 &le; m &lt; 2<sup>53</sup>; the mirror image is
+	    (2<sup>53</sup>-1-m)*2<sup>-53</sup>, which is computed
+	    exactly and is still in [0,1). */
+	public double nextDouble() {
+	    return 0x1.fffffffffffffp-1 - base.nextDouble();
+	}
+
+	public long nextLong() {
+	    return ~base.nextLong();
+	}
+    }
+
+    /** The constants and the mixing function used by the generators
+	of java.util.random to turn a long seed into an initial state */
+    static final long GOLDEN_RATIO_64 = 0x9E3779B97F4A7C15L,
+	SILVER_RATIO_64 = 0x6A09E667F3BCC909L;
+
+    static long mixMurmur64(long z) {
+	z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+	z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+	return z ^ (z >>> 33);
+    }
+
+    /** The LXM generator L64X128MixRandom: a 64-bit linear
+	congruential generator and a xoroshiro128 generator, whose
+	outputs are added and mixed. Its period is 2<sup>192</sup>, and
+	generators with different additive constants (a) produce
+	statistically independent streams; a is derived from the seed,
+	so the per-lane streams of the CRN mode are independent. */
+    static final class L64X128Mix implements RandomGenerator, Serializable {
+	private static final long M = 0xD1342543DE82EF95L;
+	private final long a;
+	private long s, x0, x1;
+
+	L64X128Mix(long seed) {
+	    seed ^= SILVER_RATIO_64;
+	    a = mixMurmur64(seed) | 1;
+	    s = 1;
+	    x0 = mix64(seed);
+	    x1 = mix64(seed + GOLDEN_RATIO_64);
+	    if ((x0 | x1) == 0) {
+		x0 = mix64(s + GOLDEN_RATIO_64);
+		x1 = mix64(s + 2*GOLDEN_RATIO_64);
+	    }
+	}
+
+	public long nextLong() {
+	    final long result = mixLea64(s + x0);
+	    s = M * s + a;
+	    long q0 = x0, q1 = x1;
+	    q1 ^= q0;
+	    q0 = Long.rotateLeft(q0, 24);
+	    q0 = q0 ^ q1 ^ (q1 << 16);
+	    q1 = Long.rotateLeft(q1, 37);
+	    x0 = q0;
+	    x1 = q1;
+	    return result;
+	}
+
+	private static long mixLea64(long z) {
+	    z = (z ^ (z >>> 32)) * 0xDABA0B6EB09322E3L;
+	    z = (z ^ (z >>> 32)) * 0xDABA0B6EB09322E3L;
+	    return z ^ (z >>> 32);
+	}
+    }
+
+    /** The xoroshiro128++ generator (Xoroshiro128PlusPlus), with a
+	period of 2<sup>128</sup>-1 */
+    static final class Xoroshiro128PlusPlus implements RandomGenerator, Serializable {
+	private long x0, x1;
+
+	Xoroshiro128PlusPlus(long seed) {
+	    seed ^= SILVER_RATIO_64;
+	    x0 = mix64(seed);
+	    x1 = mix64(seed + GOLDEN_RATIO_64);
+	    if ((x0 | x1) == 0) {
+		x0 = GOLDEN_RATIO_64;
+		x1 = SILVER_RATIO_64;
+	    }
+	}
+
+	public long nextLong() {
+	    final long s0 = x0;
+	    long s1 = x1;
+	    final long result = Long.rotateLeft(s0 + s1, 17) + s0;
+	    s1 ^= s0;
+	    x0 = Long.rotateLeft(s0, 49) ^ s1 ^ (s1 << 21);
+	    x1 = Long.rotateLeft(s1, 28);
+	    return result;
+	}
+    }
+
+    /** The SplitMix64 generator of SplittableRandom: a Weyl sequence
+	(period 2<sup>64</sup>), scrambled by mix64() */
+    static final class SplitMix64 implements RandomGenerator, Serializable {
+	private long s;
+
+	SplitMix64(long seed) {
+	    s = seed;
+	}
+
+	public long nextLong() {
+	    return mix64(s += GOLDEN_RATIO_64);
+	}
+    }
+}
@@ -0,0 +1,317 @@
+package qsim;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.text.*;
+
+/** A single simulation run (replication), as carried out by the batch
+    simulator ({@link Qsim#main(String[])}).
+
+    <p>Each run has its own random number generator(s), seeded with a
+    seed derived from the user-supplied seed and the run number. Thus
+    the results of each run don't depend on the order in which the
+    runs are carried out, or on how many of them are carried out at
+    the same time; {@link #runAll(Vector, int)} can use any number of
+    worker threads, and the output files will be exactly the same.
+ */
+class Replication implements Callable<Replication> {
+
+    final Parameters para;
+    /** The run number (0-based) */
+    final int k;
+    /** The total number of runs in the job (only used in messages) */
+    final int runs;
+    /** The seed for this run's random number generator(s) */
+    final long seed;
+    /** Random number generation options: common random numbers; antithetic
+	numbers. */
+    final boolean crn, antithetic;
+    /** The time limit; a negative value means "no limit" */
+    final long T;
+    /** The pre-computed arrival schedule; null if arrivals are
+	generated dynamically */
+    final StaticArrivalSchedule[] ss;
+    /** The arrival schedule file, if the run is to read it as it goes
+	on, rather than use a schedule read in advance (ss) */
+    private File arrivalFile = null;
+    /** The file into which the crowd size log will be written */
+    final File outFile;
+    final boolean headless;
+    /** Identifies the configuration in messages, when several are compared */
+    String label = "";
+
+    /** How often (in seconds of wall clock time) to save the state of
+	the run; 0 means never */
+    private double checkpointSec = 0;
+    /** If true, and the checkpoint file exists, the run is resumed from it */
+    private boolean resume = false;
+
+    /** Sets the checkpoint options. The checkpoint file is saved next to
+	the log file. */
+    void setCheckpoint(double sec, boolean _resume) {
+	checkpointSec = sec;
+	resume = _resume;
+    }
+
+    /** Makes the run read its arrival schedule from the specified
+	file, as it goes on (see {@link StaticArrivalSchedule#open(File,
+	int)}), so that only the schedules of the runs in progress take
+	up memory */
+    void setArrivalFile(File f) {
+	arrivalFile = f;
+    }
+
+    /** The checkpoint file for this run: the log file name, with the
+	extension ".ckpt" */
+    File checkpointFile() {
+	return siblingFile(".ckpt");
+    }
+
+    /** The customer trace file for this run (with -Dcompleted=TRACE):
+	the log file name, with "-trace.dat" instead of ".dat" */
+    File traceFile() {
+	return siblingFile("-trace.dat");
+    }
+
+    /** A file next to the log file, whose name is the log file name
+	with the extension ".dat" replaced by the specified suffix */
+    private File siblingFile(String suffix) {
+	String name = outFile.getName();
+	if (name.endsWith(".dat")) name = name.substring(0, name.length()-4);
+	return new File(outFile.getParentFile(), name + suffix);
+    }
+
+    /** The results of the run, available after it has completed: the
+	final simulated time, and the totals over all lanes */
+    long endTime, sumArv, sumDone, sumDet, sumMissed;
+    /** The time-averaged crowd size */
+    double meanCrowd;
+    /** The statistics of the completed customers (with
+	-Dcompleted=STATS); null otherwise */
+    CompletionSink.Stats stats = null;
+
+    /** @param antiPairs If true, runs come in pairs (0,1), (2,3), ...;
+	the odd-numbered run of each pair uses the same seed as the
+	even-numbered one, but with antithetic random numbers.
+     */
+    Replication(Parameters _para, int _k, int _runs, long userSeed, long _T,
+		StaticArrivalSchedule[] _ss, File _outFile, boolean _headless,
+		boolean _crn, boolean antiPairs) {
+	para = _para;
+	k = _k;
+	runs = _runs;
+	crn = _crn;
+	antithetic = antiPairs && (k%2==1);
+	seed = runSeed(userSeed, antiPairs? k - k%2 : k);
+	T = _T;
+	ss = _ss;
+	outFile = _outFile;
+	headless = _headless;
+    }
+
+    /** The seed for the random number generator for run no. k. Run 0
+	uses the user-supplied seed as is, so that a single-run job
+	gives the same results as it always has. The seeds for the other
+	runs are obtained by scrambling the user-supplied seed and the
+	run number with the SplitMix64 finalizer, so that the
+	generators of different runs are not correlated.
+     */
+    static long runSeed(long seed, int k) {
+	if (k==0) return seed;
+	return RandomStreams.mix64(seed + k * 0x9E3779B97F4A7C15L);
+    }
+
+    /** Carries out the run (or resumes it from its checkpoint), and
+	saves the crowd size log */
+    public Replication call() throws IOException {
+	System.out.println("---- Run " +k + " of " + runs + label);
+	File cf = checkpointFile();
+	Qsim qsim;
+	boolean complete = false;
+	if (resume && cf.exists()) {
+	    Checkpoint.State st = Checkpoint.load(cf);
+	    qsim = st.qsim;
+	    complete = st.complete;
+	    if (qsim.L != para.L || !qsim.para.policyName.equals(para.policyName)) {
+		throw new IOException("Checkpoint file " + cf + " was saved with different parameters (" + qsim.para + ", policy " + qsim.para.policyName + ")");
+	    }
+	    System.out.println("Run " + k + label + ": resuming from checkpoint " + cf + " at t=" + qsim.getNow() + (complete? "; the run was already complete" : ""));
+	    qsim.resumeLog();
+	    if (!complete) qsim.completionSink.resume();
+	} else {
+	    long now = 0;
+	    StaticArrivalSchedule[] s = ss;
+	    if (arrivalFile != null) {
+		System.out.println("Run " + k + label + ": reading arrival schedule from " + arrivalFile);
+		s = StaticArrivalSchedule.open(arrivalFile, para.L);
+	    }
+	    qsim = new Qsim(para, now, s, new RandomStreams(seed, crn, antithetic, para.rng));
+	    // write the log as we go, so that the memory use does not
+	    // grow with the length of the run
+	    qsim.streamLog(outFile, 0);
+	    qsim.setCompletionSink(CompletionSink.create(para, traceFile()));
+	}
+	qsim.setHeadless(headless);
+	if (!complete) {
+	    Checkpoint c = null;
+	    if (checkpointSec > 0) {
+		c = new Checkpoint(cf, (long)(checkpointSec*1000));
+		qsim.setCheckpoint(c);
+	    }
+	    qsim.simulate(T);
+	    // complete the log file before the final checkpoint, so that
+	    // resuming a complete run leaves the file alone
+	    System.out.println("Run " + k + label + ": saving log file " + outFile);
+	    qsim.saveLog(outFile);
+	    qsim.completionSink.close();
+	    if (c != null) c.save(qsim, true);
+	}
+	qsim.closeArrivals();
+	if (qsim.completionSink instanceof CompletionSink.Stats) {
+	    stats = (CompletionSink.Stats)qsim.completionSink;
+	}
+	String rep = qsim.completionSink.report();
+	if (rep != null) System.out.println("Run " + k + label + ": " + rep);
+	endTime = qsim.getNow();
+	sumArv = qsim.sumArv;
+	sumDone = qsim.sumDone;
+	sumDet = qsim.sumDet;
+	sumMissed = qsim.sumMissed;
+	meanCrowd = qsim.meanCrowd();
+	return this;
+    }
+
+    /** The names of the run outputs used in the statistical reports */
+    static final String[] metricNames = {"mean crowd", "missed threats", "detection rate"};
+
+    /** The value of one of the run outputs listed in metricNames */
+    double metric(int i) {
+	switch(i) {
+	case 0: return meanCrowd;
+	case 1: return sumMissed;
+	case 2: return (double)sumDet / (sumDet + sumMissed);
+	default: throw new IllegalArgumentException("No metric no. " + i);
+	}
+    }
+
+    /** Carries out all the specified runs, using up to the specified
+	number of worker threads, and waits for them to complete.
+	@param threads The number of worker threads. With 1, all runs
+	are carried out in the calling thread, one after another.
+	@throws IOException if any of the runs has failed
+     */
+    static void runAll(Vector<Replication> v, int threads) throws IOException {
+	if (threads <= 1) {
+	    for(Replication r: v) r.call();
+	    return;
+	}
+	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	try {
+	    Vector<Future<Replication>> futures = new Vector<Future<Replication>>();
+	    for(Replication r: v) {
+		futures.add(pool.submit(r));
+	    }
+	    for(Future<Replication> fu: futures) {
+		waitFor(fu);
+	    }
+	} finally {
+	    pool.shutdownNow();
+	}
+    }
+
+    /** Waits for a run (or another task) to complete, passing on any
+	exception it has thrown */
+    static <T> T waitFor(Future<T> fu) throws IOException {
+	try {
+	    return fu.get();
+	} catch(InterruptedException ex) {
+	    throw new InterruptedIOException("Interrupted while waiting for a simulation run to complete");
+	} catch(ExecutionException ex) {
+	    Throwable c = ex.getCause();
+	    if (c instanceof IOException) throw (IOException)c;
+	    if (c instanceof RuntimeException) throw (RuntimeException)c;
+	    if (c instanceof Error) throw (Error)c;
+	    throw new IOException(c);
+	}
+    }
+
+    /** The value of metric i, as an independent observation: the run's own
+	value, or, with antithetic pairs, the average over the pair.
+	@param v All runs
+	@param u The number of the observation (i.e. run, or pair of runs)
+     */
+    static double observation(Vector<Replication> v, int u, int i, boolean antiPairs) {
+	return antiPairs?
+	    (v.elementAt(2*u).metric(i) + v.elementAt(2*u+1).metric(i))/2 :
+	    v.elementAt(u).metric(i);
+    }
+
+    static final double conf = 0.95;
+    private static final NumberFormat fmt = new DecimalFormat("0.0000");
+
+    /** Produces a report with the mean value and the 95% confidence
+	interval of each of the metrics, over all runs */
+    static String report(Vector<Replication> v, boolean antiPairs) {
+	int n = antiPairs? v.size()/2 : v.size();
+	StringBuffer b = new StringBuffer("Summary of " + v.size() + " runs" + (antiPairs? " (" + n + " antithetic pairs)": "") + ", with "+(int)(conf*100)+"% confidence intervals:\n");
+	for(int i=0; i<metricNames.length; i++) {
+	    OnlineStats s = new OnlineStats();
+	    for(int u=0; u<n; u++) s.add(observation(v, u, i, antiPairs));
+	    b.append("  " + metricNames[i] + ": " + fmt.format(s.mean()) +
+		     " +- " + fmt.format(s.halfWidth(conf)) + "\n");
+	}
+	CompletionSink.Stats all = mergeStats(v);
+	if (all != null) {
+	    b.append("Percentiles over all runs:\n" + all.percentileReport() + "\n");
+	}
+	return b.toString();
+    }
+
+    /** Merges the completed customer statistics of all runs (which must
+	have the same configuration).
+	@return the merged statistics, or null if the runs haven't
+	collected any (i.e. unless -Dcompleted=STATS was used)
+     */
+    static CompletionSink.Stats mergeStats(List<Replication> v) {
+	CompletionSink.Stats all = null;
+	for(Replication r: v) {
+	    if (r.stats == null) continue;
+	    if (all == null) all = new CompletionSink.Stats(r.para);
+	    all.merge(r.stats);
+	}
+	return all;
+    }
+
+    /** Produces a report comparing two configurations, run with the same
+	seeds. For each metric, we show the mean difference (B-A) with
+	its confidence interval, computed from the paired differences,
+	along with the half-width that the interval would have if the
+	runs of the two configurations were independent. The ratio of
+	the squares of the two half-widths shows by how much pairing has
+	cut the number of runs needed.
+     */
+    static String compare(Vector<Replication> va, Vector<Replication> vb, boolean antiPairs) {
+	int n = antiPairs? va.size()/2 : va.size();
+	StringBuffer b = new StringBuffer("Paired comparison, B-A, over " + n + (antiPairs? " antithetic pairs" : " runs") + ", with "+(int)(conf*100)+"% confidence intervals:\n");
+	for(int i=0; i<metricNames.length; i++) {
+	    OnlineStats sa = new OnlineStats(), sb = new OnlineStats(), sd = new OnlineStats();
+	    for(int u=0; u<n; u++) {
+		double a = observation(va, u, i, antiPairs);
+		double z = observation(vb, u, i, antiPairs);
+		sa.add(a);
+		sb.add(z);
+		sd.add(z - a);
+	    }
+	    double hwPaired = sd.halfWidth(conf);
+	    double hwIndep = OnlineStats.tQuantile(0.5 + conf/2, 2*n-2) *
+		Math.sqrt( (sa.variance() + sb.variance())/n);
+	    b.append("  " + metricNames[i] + ": A=" + fmt.format(sa.mean()) +
+		     ", B=" + fmt.format(sb.mean()) +
+		     ", B-A=" + fmt.format(sd.mean()) + " +- " + fmt.format(hwPaired) +
+		     " (unpaired: +- " + fmt.format(hwIndep) +
+		     ", variance reduction x" + fmt.format(hwIndep*hwIndep/(hwPaired*hwPaired)) + ")\n");
+	}
+	return b.toString();
+    }
+}
@@ -0,0 +1,75 @@
+package qsim;
+
+import java.io.*;
+
+/** A text file written line by line during a simulation run, which can
+    be saved in a checkpoint along with the rest of the simulator. The
+    length of the file at the time of the checkpoint is saved; when the
+    run is resumed, the file is truncated to that length (dropping
+    anything written after the checkpoint), and reopened for appending.
+    A deserialized writer is closed until {@link #resume()} is called,
+    so copies of a simulator (e.g. those used for forecasts) don't
+    write to the file.
+ */
+class ResumableWriter implements Serializable {
+
+    final File file;
+    /** The number of bytes written to the file so far (as of the most
+	recent flush) */
+    private long written = 0;
+    private transient FileOutputStream fos = null;
+    private transient PrintWriter w = null;
+
+    /** Creates (or overwrites) the file */
+    ResumableWriter(File _file) throws IOException {
+	file = _file;
+	open(false);
+    }
+
+    private void open(boolean append) throws IOException {
+	fos = new FileOutputStream(file, append);
+	w = new PrintWriter(new BufferedWriter(new OutputStreamWriter(fos), 1<<16));
+    }
+
+    boolean isOpen() {
+	return w != null;
+    }
+
+    void println(String s) {
+	w.println(s);
+    }
+
+    /** Reopens the file after the run has been resumed from a
+	checkpoint. The file is truncated to the length it had when the
+	checkpoint was saved. */
+    void resume() throws IOException {
+	if (file.length() < written) throw new IOException("File " + file + " is shorter (" + file.length() + " bytes) than it was at the time of the checkpoint (" + written + " bytes)");
+	RandomAccessFile raf = new RandomAccessFile(file, "rw");
+	try {
+	    raf.setLength(written);
+	} finally {
+	    raf.close();
+	}
+	open(true);
+    }
+
+    private void flush() throws IOException {
+	w.flush();
+	if (w.checkError()) throw new IOException("Error writing file " + file);
+	written = fos.getChannel().position();
+    }
+
+    void close() throws IOException {
+	if (w == null) return;
+	flush();
+	w.close();
+	w = null;
+	fos = null;
+    }
+
+    /** Flushes the file, so that the checkpoint can record its length */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+	if (w != null) flush();
+	out.defaultWriteObject();
+    }
+}
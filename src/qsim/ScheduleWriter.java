@@ -0,0 +1,76 @@
+package qsim;
+
+import java.io.*;
+
+/** Writes an arrival schedule file in the text format (see {@link
+    StaticArrivalSchedule}). Schedule files can have many millions of
+    lines, so each arrival is formatted directly into a byte buffer,
+    rather than into a String to be encoded by a PrintWriter. The
+    output is byte for byte the same as that of
+    PrintWriter.println().
+ */
+final class ScheduleWriter {
+
+    private final File file;
+    private final OutputStream out;
+    private final byte[] buf = new byte[1<<16];
+    private int len = 0;
+    private static final byte[] NL = System.lineSeparator().getBytes();
+
+    ScheduleWriter(File f) throws IOException {
+	file = f;
+	out = new FileOutputStream(f);
+    }
+
+    /** Writes a line of text (e.g. a comment, starting with '#') */
+    void println(String s) throws IOException {
+	byte[] b = (s + System.lineSeparator()).getBytes();
+	if (len + b.length > buf.length) flush();
+	if (b.length > buf.length) {
+	    out.write(b);
+	} else {
+	    System.arraycopy(b, 0, buf, len, b.length);
+	    len += b.length;
+	}
+    }
+
+    /** Writes the line "t j threat" for one arrival
+	@param j The (1-based) lane number */
+    void arrival(long t, int j, boolean threat) throws IOException {
+	// the longest possible line
+	if (len + 20 + 1 + 10 + 1 + 1 + NL.length > buf.length) flush();
+	put(t);
+	buf[len++] = '\t';
+	put(j);
+	buf[len++] = '\t';
+	buf[len++] = (byte)(threat? '1' : '0');
+	for(byte c: NL) buf[len++] = c;
+    }
+
+    /** Writes the decimal digits of a non-negative number */
+    private void put(long x) {
+	int start = len;
+	do {
+	    buf[len++] = (byte)('0' + x%10);
+	    x /= 10;
+	} while(x > 0);
+	for(int i=start, k=len-1; i<k; i++, k--) {
+	    byte c = buf[i];
+	    buf[i] = buf[k];
+	    buf[k] = c;
+	}
+    }
+
+    private void flush() throws IOException {
+	out.write(buf, 0, len);
+	len = 0;
+    }
+
+    void close() throws IOException {
+	try {
+	    flush();
+	} finally {
+	    out.close();
+	}
+    }
+}
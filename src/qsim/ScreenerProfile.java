@@ -2,12 +2,13 @@ package qsim;
 
 import java.io.*;
 import java.util.*;
+import java.util.random.RandomGenerator;
 
 /** Describes a screener profile (performance and detection
     rate). Each screening lane supports one or several profiles,
     between which it can switch, as controlled by the profile
     selection policy.  */
-public class ScreenerProfile {
+public class ScreenerProfile implements Serializable {
 
     /** The shape of the screener profile (uniform or triangular) */
     enum Shape {
@@ -23,6 +24,21 @@ public class ScreenerProfile {
 
     final Shape shape;
 
+    /** Is the distribution of the screening time tabulated with
+	variates=FAST? Not if it is uniform (for which the exact
+	formula is as fast), or the table would be too large. */
+    private final boolean tabulated;
+    /** The distribution of the screening time, truncated to an integer
+	(as the simulator uses it), as a table. It is only built when
+	it is first needed, i.e. with variates=FAST, and is not saved in
+	checkpoints, but built again after being read back. (Several
+	runs sharing the profile may build it at the same time; they
+	build the same table, and any of them will do.) */
+    private transient Variates.IntegerInverseCdf table;
+
+    /** The largest H-L for which a table is built */
+    static final long MAX_TABLE = 1<<16;
+
     /** Creates a profile with a triangular distribution */
     ScreenerProfile(long _L, long _M, long _H, double _d) {
 	shape = Shape.TRIANGULAR;
@@ -30,6 +46,7 @@ public class ScreenerProfile {
 	M=_M;
 	H=_H;
 	d=_d;
+	tabulated = (0<=L && L<=M && M<=H && L<H && H-L<=MAX_TABLE);
     }
 
     /** Creates a profile with a uniform distribution */
@@ -39,8 +56,37 @@ public class ScreenerProfile {
 	H=_H;
 	M=0;
 	d=_d;
+	tabulated = false;
+    }
+
+    /** The probabilities of the screening time, as drawn by {@link
+	#serviceTime(RandomGenerator)}, being below L, L+1, ..., H. They
+	are computed so that the uniform random numbers x at which the
+	exact formula crosses an integer are reproduced as closely as
+	possible. */
+    private double[] triangularCdf() {
+	final int n = (int)(H-L);
+	double a=(double)(M-L)/(double)(H-L);
+	double[] cdf = new double[n+1];
+	for(int k=0; k<=n; k++) {
+	    long t = L+k;
+	    if (t <= M) {
+		double y = (M==L)? 0 : (double)(t-L)/(double)(M-L);
+		cdf[k] = a*y*y;
+	    } else {
+		double y = (double)(H-t)/(double)(H-M);
+		cdf[k] = 1-(1-a)*y*y;
+	    }
+	}
+	cdf[n] = 1;
+	return cdf;
     }
     
+    /** The detection rate, in the 0.0 to 1.0 range */
+    public double getDetectionRate() {
+	return d;
+    }
+
     public String toString() {
 	return shape == Shape.UNIFORM?
 	    "(Cost "+L+":"+ M+ ":"+H+", d="+d+")" :
@@ -81,24 +127,24 @@ public class ScreenerProfile {
 	
     /** Computes the average processing time for the triangular or uniform distribution.
      */
-    double avgCost() {
+    public double avgCost() {
 	return shape==Shape.UNIFORM? (L+H)/2.0 : (L+M+H)/3.0;
     }
 
     /** Randomly returns true, with the probability equal to this profile's 
 	detection rate */
-    boolean detects() {
-	return (Qsim.gen.nextDouble() < d);
+    boolean detects(RandomGenerator gen) {
+	return (gen.nextDouble() < d);
     }
     /** Returns a random value in the range from L to H, subject to
 	the uniform or triangular distribution with the mode at M. */
-    double serviceTime() {
+    double serviceTime(RandomGenerator gen) {
 	if (shape==Shape.UNIFORM) {
-	    double x=Qsim.gen.nextDouble();
+	    double x=gen.nextDouble();
 	    return L*(1-x)  + H * x;
 	} else { // TRIANGULAR
 	    double a=(double)(M-L)/(double)(H-L);
-	    double x=Qsim.gen.nextDouble();
+	    double x=gen.nextDouble();
 	    double t = (x<a) ?
 		L+Math.sqrt(x/a)*(M-L) :
 		H-(H-M)* Math.sqrt((1-x)/(1-a));
@@ -106,5 +152,23 @@ public class ScreenerProfile {
 	}
     }
 
+    /** The table of the distribution, built if needed; null if the
+	distribution is not tabulated */
+    private Variates.IntegerInverseCdf table() {
+	Variates.IntegerInverseCdf t = table;
+	if (t == null && tabulated) {
+	    table = t = new Variates.IntegerInverseCdf(L, triangularCdf());
+	}
+	return t;
+    }
+
+    /** Returns a random screening time, truncated to an integer, as
+	it would be by the caller of {@link #serviceTime(RandomGenerator)}.
+	Uses a table instead of the square root, where there is one. */
+    long fastServiceTime(RandomGenerator gen) {
+	Variates.IntegerInverseCdf t = table();
+	return (t!=null)? t.sample(gen) : (long)serviceTime(gen);
+    }
+
 }
    
@@ -0,0 +1,164 @@
+package qsim;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.text.*;
+
+/** Carries out simulation runs until the confidence intervals for the
+    run outputs ({@link Replication#metricNames}) are narrow enough, or
+    until the run budget is exhausted. This is used by the batch
+    simulator instead of a fixed number of runs when the "precision"
+    option is given.
+
+    <p>The outputs of the runs are accumulated as the runs complete,
+    and after each one the current confidence intervals are printed.
+    The simulation stops as soon as, for each output, the half-width of
+    the confidence interval is no more than the specified fraction of
+    the mean. When comparing two configurations, the criterion is
+    applied to the paired differences B-A instead, but relative to the
+    mean of configuration A: the difference is usually small (which
+    is what a comparison often shows), so the half-width relative to
+    the difference itself would never get small enough.
+
+    <p>An output that is not defined for a run (such as the detection
+    rate, in a run without any threats) has no observation from that
+    run. An output that is not defined for any run is reported as
+    such, and does not stand in the way of stopping.
+
+    <p>Runs are carried out on a pool of worker threads, but their
+    outputs are always taken in the order of run numbers, so the
+    stopping point does not depend on the number of threads. Runs that
+    were already in progress at the stopping point are allowed to
+    finish (and their log files are written), but they are not included
+    in the estimates.
+ */
+class SequentialStopping {
+
+    /** Creates the runs for a given run number */
+    interface Factory {
+	/** @return An array with the run for configuration A and, if
+	    two configurations are compared, the run for
+	    configuration B, both using the same seed */
+	Replication[] make(int k) throws IOException;
+    }
+
+    /** The target relative half-width of the confidence intervals */
+    final double precision;
+    /** The run budget */
+    final int maxRuns;
+    final int threads;
+    /** If true, the runs come in antithetic pairs, and each pair is a
+	single observation */
+    final boolean antiPairs;
+    /** Are two configurations being compared? */
+    final boolean paired;
+    private final Factory factory;
+
+    /** We need a few observations before the variance estimate means anything */
+    static final int minObservations = 3;
+
+    /** The runs whose outputs have been used, for configurations A and B */
+    final Vector<Replication> va = new Vector<Replication>(), vb = new Vector<Replication>();
+
+    SequentialStopping(Factory _factory, double _precision, int _maxRuns, int _threads, boolean _antiPairs, boolean _paired) {
+	factory = _factory;
+	precision = _precision;
+	maxRuns = _maxRuns;
+	threads = _threads;
+	antiPairs = _antiPairs;
+	paired = _paired;
+    }
+
+    private static final NumberFormat fmt = new DecimalFormat("0.0000");
+    private static final NumberFormat pfmt = new DecimalFormat("0.0%");
+
+    /** Carries out the runs, until the desired precision is achieved
+	or the budget is exhausted.
+	@return true if the desired precision has been achieved
+     */
+    boolean run() throws IOException {
+	final int unitSize = antiPairs? 2 : 1;
+	final int nm = Replication.metricNames.length;
+	// the observations (of the differences B-A, when comparing),
+	// and, when comparing, of configuration A alone
+	OnlineStats[] stats = new OnlineStats[nm], statsA = new OnlineStats[nm];
+	for(int i=0; i<nm; i++) {
+	    stats[i] = new OnlineStats();
+	    statsA[i] = new OnlineStats();
+	}
+
+	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	LinkedList<Future<Replication>[]> pending = new LinkedList<Future<Replication>[]>();
+	int next = 0;
+	boolean done = false;
+	try {
+	    while(!done) {
+		// keep the workers busy, but don't run too far ahead
+		while(next < maxRuns && pending.size() < Math.max(threads, unitSize)) {
+		    pending.add(submit(pool, factory.make(next++)));
+		}
+		if (pending.isEmpty()) break;
+		Future<Replication>[] fu = pending.removeFirst();
+		va.add(Replication.waitFor(fu[0]));
+		if (paired) vb.add(Replication.waitFor(fu[1]));
+		if (va.size() % unitSize != 0) continue;
+
+		int u = va.size()/unitSize - 1;
+		for(int i=0; i<nm; i++) {
+		    double xa = Replication.observation(va, u, i, antiPairs);
+		    double x = paired? Replication.observation(vb, u, i, antiPairs) - xa : xa;
+		    if (Double.isNaN(x)) continue;
+		    stats[i].add(x);
+		    statsA[i].add(xa);
+		}
+		done = report(stats, statsA, u+1);
+	    }
+
+	    if (!pending.isEmpty()) {
+		System.out.println("Waiting for " + pending.size() + " more run(s) already in progress; they won't be included in the estimates");
+		for(Future<Replication>[] fu: pending) {
+		    for(Future<Replication> f: fu) Replication.waitFor(f);
+		}
+	    }
+	} finally {
+	    pool.shutdownNow();
+	}
+	if (!done) System.out.println("The budget of " + maxRuns + " runs has been exhausted before the desired precision (" + pfmt.format(precision) +") was achieved");
+	return done;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Future<Replication>[] submit(ExecutorService pool, Replication[] r) {
+	Future<Replication>[] fu = new Future[r.length];
+	for(int i=0; i<r.length; i++) fu[i] = pool.submit(r[i]);
+	return fu;
+    }
+
+    /** Prints the current confidence intervals.
+	@param n The number of observations so far
+	@return true if the desired precision has been achieved for all
+	outputs that are defined
+     */
+    private boolean report(OnlineStats[] stats, OnlineStats[] statsA, int n) {
+	boolean ok = n >= minObservations;
+	StringBuffer b = new StringBuffer("After " + va.size() + " run(s)" + (paired? ", B-A" : "") +":");
+	for(int i=0; i<stats.length; i++) {
+	    b.append(" " + Replication.metricNames[i]);
+	    if (stats[i].count() == 0) {
+		b.append(" undefined");
+	    } else {
+		double hw = stats[i].halfWidth(Replication.conf);
+		// relative to the mean of A (which, unless comparing, is
+		// the mean of the observations themselves)
+		double rel = (hw==0) ? 0 : hw / Math.abs(statsA[i].mean());
+		if (stats[i].count() < minObservations || !(rel <= precision)) ok = false;
+		b.append(" " + fmt.format(stats[i].mean()));
+		if (!Double.isNaN(hw)) b.append(" +- " + fmt.format(hw) + " (" + pfmt.format(rel) + (paired? " of A" : "") + ")");
+	    }
+	    b.append(i+1<stats.length? ";" : "");
+	}
+	System.out.println(b);
+	return ok;
+    }
+}
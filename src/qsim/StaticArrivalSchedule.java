@@ -1,34 +1,287 @@
 package qsim;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
-/** A precomputed customer arrival schedule */
-public class StaticArrivalSchedule {
-    private Queue.ArrivalBase[] list;
-    StaticArrivalSchedule(Queue.ArrivalBase[] _list) {
-	list = _list;
+/** A precomputed customer arrival schedule for one lane.
+
+    <p>The arrivals are kept as longs, each packing the arrival time
+    and the threat flag (arrivalTime*2 + (threat? 1 : 0)), rather than
+    as one object per customer. Schedules are read from files in
+    either of two formats ({@link #readFile(File, int)} tells them
+    apart):
+
+    <ul>
+    <li>The text format, as written by {@link GenerateArrivals}: one
+    line per customer, "t j threat", where t is the arrival time, j the
+    (1-based) lane number, and threat is 0 or 1, in chronological order.
+    Lines starting with '#' are comments.
+
+    <li>The binary format, as written by {@link
+    #writeBinary(StaticArrivalSchedule[], File)} (and produced from the
+    text format by {@link ConvertArrivals}). It consists of the 8
+    bytes {@link #MAGIC}, the number of lanes L (a 4-byte int) and 4
+    bytes of padding, the number of customers in each lane (L longs),
+    and then the packed arrivals of lane 1, lane 2, etc. (as longs, in
+    chronological order). All numbers are little-endian. The
+    arrivals of each lane are memory-mapped, rather than read, so
+    that a schedule of any size is loaded at once, and its pages are
+    only brought into memory as the simulation reaches them.
+    </ul>
+
+    <p>Schedules obtained with {@link #open(File, int)}, rather than
+    {@link #readFile(File, int)}, are not read into memory: the
+    arrivals are read from a text file as the simulation reaches them,
+    by an {@link ArrivalStream} shared by all lanes.
+ */
+public class StaticArrivalSchedule implements Serializable {
+
+    /** The beginning of every binary schedule file */
+    static final byte[] MAGIC = {'Q','S','I','M','A','R','V','1'};
+
+    /** The arrivals (packed), if they have been read from a text
+	file; null if they are memory-mapped */
+    private final long[] packed;
+    /** The binary file the arrivals are mapped from (null if they have
+	been read from a text file), and the position of this lane's
+	arrivals in it */
+    private final File file;
+    private final long offset;
+    /** The number of arrivals */
+    private final int n;
+    /** The arrivals, as a view either of the array or of the mapped
+	file; null if they are read from a stream */
+    private transient LongBuffer data;
+    /** The reader of a text file, from which the arrivals are read as
+	they are needed (null if they are in the array or mapped), and
+	the (0-based) number of this lane */
+    private final ArrivalStream stream;
+    private final int lane;
+
+    private StaticArrivalSchedule(long[] _packed, int _n) {
+	packed = _packed;
+	n = _n;
+	file = null;
+	offset = 0;
+	stream = null;
+	lane = 0;
+	data = LongBuffer.wrap(packed, 0, n);
+    }
+
+    private StaticArrivalSchedule(ArrivalStream _stream, int _lane, int _n) {
+	packed = null;
+	file = null;
+	offset = 0;
+	stream = _stream;
+	lane = _lane;
+	n = _n;
+    }
+
+    /** @param all The whole file, mapped; null if it is too large
+	for that, in which case this lane's arrivals are mapped separately */
+    private StaticArrivalSchedule(File _file, long _offset, int _n,
+				  ByteBuffer all) throws IOException {
+	packed = null;
+	file = _file;
+	offset = _offset;
+	n = _n;
+	stream = null;
+	lane = 0;
+	data = (all != null) ?
+	    all.slice((int)offset, 8*n).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer() :
+	    map(file, offset, n);
+    }
+
+    /** Creates a new schedule with the same arrivals, to be read from the
+	beginning independently of the original
+	@param _stream The copy of the original's stream, if it has one */
+    private StaticArrivalSchedule(StaticArrivalSchedule s, ArrivalStream _stream) {
+	packed = s.packed;
+	file = s.file;
+	offset = s.offset;
+	n = s.n;
+	stream = _stream;
+	lane = s.lane;
+	data = (s.data != null)? s.data.duplicate() : null;
+    }
+
+    /** The arrivals of a lane in a binary schedule file, as a buffer */
+    private static LongBuffer map(File f, long offset, int n) throws IOException {
+	if (n==0) return LongBuffer.allocate(0);
+	FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+	try {
+	    // the mapping remains valid after the channel is closed
+	    return fc.map(FileChannel.MapMode.READ_ONLY, offset, 8L*n).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+	} finally {
+	    fc.close();
+	}
+    }
+
+    /** A memory-mapped schedule is saved (in checkpoints) as the name
+	of its file and its position in it, and is mapped again when
+	read back */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+	in.defaultReadObject();
+	if (packed != null) {
+	    data = LongBuffer.wrap(packed, 0, n);
+	} else if (file != null) {
+	    if (!file.exists()) throw new InvalidObjectException("Arrival schedule file " + file + " does not exist anymore");
+	    data = map(file, offset, n);
+	}
+    }
+
+    int size() { return n; }
+
+    /** Creates new schedules with the same arrivals, to be read from the
+	beginning independently of the originals.
+	@param ss The original schedules; may be null
+     */
+    static StaticArrivalSchedule[] copy(StaticArrivalSchedule[] ss) throws IOException {
+	if (ss == null) return null;
+	StaticArrivalSchedule[] z = new StaticArrivalSchedule[ss.length];
+	// the lanes' stream, and its copy
+	ArrivalStream s = null, sz = null;
+	for(int j=0; j<ss.length; j++) {
+	    if (ss[j].stream != null && ss[j].stream != s) {
+		s = ss[j].stream;
+		sz = s.restart();
+	    }
+	    z[j] = new StaticArrivalSchedule(ss[j], ss[j].stream != null? sz : null);
+	}
+	return z;
+    }
+    /** Closes the file the arrivals are read from, if they are read
+	from a stream (which all lanes share) */
+    void close() throws IOException {
+	if (stream != null) stream.close();
     }
-    int size() { return list.length; }
-    private int nextPtr=0;    
+
+    private int nextPtr=0;
+    /** The arrival time of the previous arrival */
+    private long lastTime=0;
+
     boolean hasNext() {
-	return nextPtr < list.length;
+	return nextPtr < n;
     }
-    Queue.ArrivalBase next() {
-	if (hasNext()) return list[ nextPtr++];
-	throw new IllegalArgumentException("Trying to read beyond the end of list");
+
+    /** The next arrival, packed: see {@link #time(long)} and {@link #threat(long)} */
+    long next() {
+	if (!hasNext()) throw new IllegalArgumentException("Trying to read beyond the end of list");
+	if (stream != null) {
+	    // checked when the stream was opened
+	    nextPtr++;
+	    return stream.next(lane);
+	}
+	long b = data.get(nextPtr++);
+	// the binary files are not checked when they are mapped (but
+	// may have been by check())
+	if (file != null && (b < 0 || time(b) < lastTime)) throw new IllegalArgumentException("Invalid arrival time " + time(b) + " (the previous one was " + lastTime + ") in the schedule file " + file);
+	lastTime = time(b);
+	return b;
+    }
+
+    static long pack(long arrivalTime, boolean threat) {
+	return (arrivalTime << 1) | (threat? 1 : 0);
+    }
+
+    /** The arrival time of a packed arrival */
+    static long time(long b) {
+	return b >>> 1;
     }
 
-    /** Reads pre-created arrival schedules for multiple queues */
-    @SuppressWarnings("unchecked")
-    public static StaticArrivalSchedule[] readFile(File f, int L) throws IOException, 
+    /** Whether a packed arrival is a threat */
+    static boolean threat(long b) {
+	return (b & 1) != 0;
+    }
+
+    /** Does the file start with the binary format's MAGIC? */
+    static boolean isBinary(File f) throws IOException {
+	if (f.length() < MAGIC.length) return false;
+	byte[] b = new byte[MAGIC.length];
+	DataInputStream in = new DataInputStream(new FileInputStream(f));
+	try {
+	    in.readFully(b);
+	} finally {
+	    in.close();
+	}
+	return Arrays.equals(b, MAGIC);
+    }
+
+    /** Reads pre-created arrival schedules for multiple queues, from a
+	file in either the text or the binary format.
+	@param L The number of lanes. The file may have data for fewer lanes
+	than that; the others then have no arrivals
+     */
+    public static StaticArrivalSchedule[] readFile(File f, int L) throws IOException,
 							   Parameters.ParseException {
-	//Vector<Queue.ArrivalBase> v[]= new Vector<Queue.ArrivalBase>[L];
-	Vector v[]= new Vector[L];
+	StaticArrivalSchedule[] ss = isBinary(f)? readBinary(f, L) : readText(f, L);
 	for(int j=0; j<L; j++) {
-	    v[j] = new Vector();
+	    System.out.println("Read schedule["+j+"], len=" + ss[j].size());
+	}
+	return ss;
+    }
+
+    /** Opens pre-created arrival schedules for multiple queues, for
+	reading as the simulation goes on. A binary file is mapped, as
+	by {@link #readFile(File, int)}; a text file is read through
+	once, to check it and to count the arrivals, but its arrivals
+	are not kept in memory, and are read again, a few at a time,
+	as they are needed (see {@link ArrivalStream}).
+	@param L The number of lanes
+     */
+    static StaticArrivalSchedule[] open(File f, int L) throws IOException,
+						       Parameters.ParseException {
+	if (isBinary(f)) return readBinary(f, L);
+	ArrivalStream s = new ArrivalStream(f, L);
+	long[] cnt = s.scan();
+	StaticArrivalSchedule[] ss = new StaticArrivalSchedule[L];
+	for(int j=0; j<L; j++) {
+	    if (cnt[j] > Integer.MAX_VALUE) throw new Parameters.ParseException("Arrival schedule file " + f + " has too many arrivals ("+cnt[j]+") for lane " + (j+1));
+	    ss[j] = new StaticArrivalSchedule(s, j, (int)cnt[j]);
+	}
+	return ss;
+    }
+
+    /** Checks that a file can be opened with {@link #open(File, int)}
+	later, and read to the end, by reading it through once, without
+	keeping its arrivals in memory: for a binary file, the header,
+	and that each lane's arrivals are in chronological order; for a
+	text file, every line, as {@link ArrivalStream#scan()} does. */
+    static void check(File f, int L) throws IOException, Parameters.ParseException {
+	if (isBinary(f)) {
+	    long[] cnt = binaryCounts(f, L);
+	    long pos = headerLength(cnt.length);
+	    for(int j=0; j<cnt.length; j++) {
+		LongBuffer data = map(f, pos, (int)cnt[j]);
+		long last = 0;
+		for(int i=0; i<cnt[j]; i++) {
+		    long b = data.get(i);
+		    if (b < 0 || time(b) < last) throw new Parameters.ParseException("Binary arrival schedule file " + f + " has an invalid arrival time " + time(b) + " (the previous one was " + last + ") for lane " + (j+1));
+		    last = time(b);
+		}
+		pos += 8*cnt[j];
+	    }
+	} else {
+	    ArrivalStream s = new ArrivalStream(f, L);
+	    try {
+		s.scan();
+	    } finally {
+		s.close();
+	    }
+	}
+    }
+
+    /** Reads a file in the text format */
+    private static StaticArrivalSchedule[] readText(File f, int L) throws IOException,
+							   Parameters.ParseException {
+	long[][] v = new long[L][];
+	int[] cnt = new int[L];
+	for(int j=0; j<L; j++) {
+	    v[j] = new long[16];
 	}
-	int [] ptr =  new int[L];
 	LineNumberReader r = new LineNumberReader( new FileReader(f));
 	String s=null;
 	while((s = r.readLine())!=null) {
@@ -43,19 +296,162 @@ public class StaticArrivalSchedule {
 	    if (j < 1 || j>L)  throw new Parameters.ParseException(f,r," Lane number out of range ("+j+")");
 	    if (it < 0 || it>1)  throw new Parameters.ParseException(f,r," Threat must be 0 or 1 (found "+it+")");
 	    boolean threat = (it!=0);
-	    Vector<Queue.ArrivalBase> w = (Vector<Queue.ArrivalBase>)v[j-1];
-	    if (w.size()>0 && w.lastElement().arrivalTime > t) throw new  Parameters.ParseException(f,r," Arrival times for lane "+j+" are not in chronological order: " + s);
-	    w.add(new Queue.ArrivalBase(threat, t));
-	}	
+	    long[] w = v[j-1];
+	    int n = cnt[j-1];
+	    if (n>0 && time(w[n-1]) > t) throw new  Parameters.ParseException(f,r," Arrival times for lane "+j+" are not in chronological order: " + s);
+	    if (n == w.length) v[j-1] = w = Arrays.copyOf(w, 2*n);
+	    w[n] = pack(t, threat);
+	    cnt[j-1]++;
+	}
 	r.close();
 	StaticArrivalSchedule[] ss = new StaticArrivalSchedule[L];
 	for(int j=0; j<L; j++) {
-	    Vector<Queue.ArrivalBase> w = (Vector<Queue.ArrivalBase>)v[j];
-	    System.out.println("Read schedule["+j+"], len=" + w.size());
-	    ss[j] = new StaticArrivalSchedule(w.toArray(new Queue.ArrivalBase[0]));	   
+	    ss[j] = new StaticArrivalSchedule(v[j], cnt[j]);
 	}
 	return ss;
-	
     }
 
-}
\ No newline at end of file
+    /** The length of the header of a binary file for L lanes */
+    private static long headerLength(int L) {
+	return MAGIC.length + 8 + 8L*L;
+    }
+
+    /** The number of lanes for which a binary file has data */
+    static int laneCount(File f) throws IOException {
+	FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+	try {
+	    ByteBuffer h = ByteBuffer.allocate(MAGIC.length + 8).order(ByteOrder.LITTLE_ENDIAN);
+	    readFully(fc, h, 0);
+	    return h.getInt(MAGIC.length);
+	} finally {
+	    fc.close();
+	}
+    }
+
+    /** Reads the header of a file in the binary format, and checks it
+	against the length of the file
+	@return the number of arrivals in each lane that has data */
+    private static long[] binaryCounts(File f, int L) throws IOException,
+						     Parameters.ParseException {
+	int fileL = laneCount(f);
+	FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+	long[] cnt;
+	try {
+	    if (fileL < 0 || fileL > L) throw new Parameters.ParseException("Binary arrival schedule file " + f + " has data for " + fileL + " lanes, rather than " + L);
+	    ByteBuffer c = ByteBuffer.allocate(8*fileL).order(ByteOrder.LITTLE_ENDIAN);
+	    readFully(fc, c, MAGIC.length + 8);
+	    c.flip();
+	    cnt = new long[fileL];
+	    c.asLongBuffer().get(cnt);
+	} finally {
+	    fc.close();
+	}
+	long pos = headerLength(cnt.length);
+	for(int j=0; j<cnt.length; j++) {
+	    if (cnt[j] < 0 || cnt[j] > Integer.MAX_VALUE) throw new Parameters.ParseException("Binary arrival schedule file " + f + " has an invalid number of arrivals ("+cnt[j]+") for lane " + (j+1));
+	    pos += 8*cnt[j];
+	}
+	if (pos != f.length()) throw new Parameters.ParseException("Binary arrival schedule file " + f + " has length " + f.length() + ", rather than " + pos + ", as per its header");
+	return cnt;
+    }
+
+    /** Maps the arrivals of each lane in a file in the binary format */
+    private static StaticArrivalSchedule[] readBinary(File f, int L) throws IOException,
+							   Parameters.ParseException {
+	long[] cnt = binaryCounts(f, L);
+
+	// one mapping for the whole file, if it can be done, is much
+	// cheaper than one for each lane
+	ByteBuffer all = null;
+	if (f.length() <= Integer.MAX_VALUE) {
+	    FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+	    try {
+		all = fc.map(FileChannel.MapMode.READ_ONLY, 0, f.length());
+	    } finally {
+		fc.close();
+	    }
+	}
+
+	StaticArrivalSchedule[] ss = new StaticArrivalSchedule[L];
+	long pos = headerLength(cnt.length);
+	for(int j=0; j<L; j++) {
+	    int n = (j<cnt.length)? (int)cnt[j] : 0;
+	    ss[j] = new StaticArrivalSchedule(f, pos, n, all);
+	    pos += 8L*n;
+	}
+	return ss;
+    }
+
+    private static void readFully(FileChannel fc, ByteBuffer b, long pos) throws IOException {
+	while(b.hasRemaining()) {
+	    if (fc.read(b, pos + b.position()) < 0) throw new EOFException();
+	}
+    }
+
+    /** Saves the schedules (all their arrivals, whether they have been
+	used yet or not) in a file in the binary format. The schedules
+	must have been obtained with {@link #readFile(File, int)}. */
+    static void writeBinary(StaticArrivalSchedule[] ss, File f) throws IOException {
+	final int L = ss.length;
+	FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.WRITE,
+					  StandardOpenOption.CREATE,
+					  StandardOpenOption.TRUNCATE_EXISTING);
+	try {
+	    ByteBuffer b = ByteBuffer.allocate(1<<16).order(ByteOrder.LITTLE_ENDIAN);
+	    b.put(MAGIC);
+	    b.putInt(L);
+	    b.putInt(0);
+	    for(int j=0; j<L; j++) {
+		if (b.remaining() < 8) flush(fc, b);
+		b.putLong(ss[j].n);
+	    }
+	    for(int j=0; j<L; j++) {
+		for(int i=0; i<ss[j].n; i++) {
+		    if (b.remaining() < 8) flush(fc, b);
+		    b.putLong(ss[j].data.get(i));
+		}
+	    }
+	    flush(fc, b);
+	} finally {
+	    fc.close();
+	}
+    }
+
+    private static void flush(FileChannel fc, ByteBuffer b) throws IOException {
+	b.flip();
+	while(b.hasRemaining()) fc.write(b);
+	b.clear();
+    }
+
+    /** Saves the schedules in a file in the text format. The arrivals
+	of all lanes are listed in chronological order (the lanes with
+	the same arrival time in the order of lane numbers), as by
+	{@link GenerateArrivals}. The schedules must have been obtained
+	with {@link #readFile(File, int)}. */
+    static void writeText(StaticArrivalSchedule[] ss, File f) throws IOException {
+	final int L = ss.length;
+	ScheduleWriter w = new ScheduleWriter(f);
+	try {
+	    w.println("# This file contains customer arrival times. Each line is in the format");
+	    w.println("# t j threat");
+	    w.println("# Where t is the time, j is the (1-based) lane number, threat=0 or 1");
+	    w.println("# The data are for L="+L+" lanes");
+	    // the lanes, keyed by the time of their next arrival; ties are
+	    // broken by the lane number
+	    EventHeap h = new EventHeap(L);
+	    int ptr[] = new int[L];
+	    for(int j=0; j<L; j++) {
+		if (ss[j].n > 0) h.set(j, time(ss[j].data.get(0)));
+	    }
+	    while(h.minTime() != Queue.NEVER) {
+		int j = h.poll();
+		long b = ss[j].data.get(ptr[j]++);
+		w.arrival(time(b), j+1, threat(b));
+		if (ptr[j] < ss[j].n) h.set(j, time(ss[j].data.get(ptr[j])));
+	    }
+	} finally {
+	    w.close();
+	}
+    }
+
+}
@@ -0,0 +1,263 @@
+package qsim;
+
+import java.io.*;
+import java.util.*;
+import java.math.BigDecimal;
+import java.text.*;
+
+/** An auxiliary application for parameter sweeps. It takes a config
+    file, and a sweep spec file that lists several values for some of
+    the config parameters, and carries out simulation runs for every
+    combination of these values (a "scenario"). All runs of all
+    scenarios are carried out in the same JVM, on a pool of worker
+    threads, and the results are presented in a single summary table,
+    with one row per scenario.
+
+    <p>Each line of the sweep spec file contains a parameter name, and
+    either a list of values, or a range in the form from:to:step, e.g.
+<pre>
+# the number of lanes
+L          10 20 50
+lambda     0.1:0.3:0.05
+policy     P1 P3
+</pre>
+    Any parameter that can appear in a config file can be swept,
+    except those that apply to the sweep as a whole ({@link
+    #runWide}). The first parameter listed varies the slowest.
+*/
+public class Sweep {
+
+    static void usage() {
+	usage(null);
+    }
+
+    static void usage(String m) {
+	System.out.println("Usage: java [options] qsim.Sweep config.dat sweep-spec.dat [output-dir-name]");
+	System.out.println("Options:");
+	System.out.println(" [-DT=-1] -- will stop each run after simulation time reaches that point. (-1 means don't stop until running out of customers)");
+	System.out.println(" [-Druns=1] -- number of simulation runs for each scenario");
+	System.out.println(" [-Dseed=0] -- seed for the random number generator. Each scenario uses the same seeds");
+	System.out.println(" [-Dthreads=(number of CPUs)] -- number of simulation runs to carry out at the same time");
+	System.out.println(" [-Dcrn=false] -- common random numbers, which make the comparison between scenarios more precise");
+	if (m!=null) {
+	    System.out.println(m);
+	}
+	System.exit(1);
+    }
+
+    /** One of the parameters being swept, with its values */
+    static class Axis {
+	final String name;
+	/** The values, as they would be stored by ParseConfig: Double
+	    for numbers, String for everything else */
+	final Vector<Object> values = new Vector<Object>();
+	Axis(String _name) { name = _name; }
+    }
+
+    /** The parameters that are read once, and apply to all scenarios
+	alike; they are set in the config file, or with -D, and can't be
+	swept */
+    static final String[] runWide = {"T", "runs", "seed", "threads", "crn"};
+
+    /** Reads the sweep spec file. */
+    static Vector<Axis> readSpec(File f) throws IOException {
+	Vector<Axis> axes = new Vector<Axis>();
+	LineNumberReader r = new LineNumberReader(new FileReader(f));
+	try {
+	    String s;
+	    while((s = r.readLine()) != null) {
+		int p = s.indexOf('#');
+		if (p>=0) s = s.substring(0,p);
+		s = s.trim();
+		if (s.length()==0) continue;
+		String[] q = s.split("[\\s=;,]+");
+		if (q.length < 2) throw new Parameters.ParseException(f, r, "Expected a parameter name followed by its values");
+		for(String name: runWide) {
+		    if (name.equals(q[0])) throw new Parameters.ParseException(f, r, "Parameter " + name + " applies to all scenarios alike, and can't be swept; set it with -D" + name + " instead");
+		}
+		Axis a = new Axis(q[0]);
+		for(int i=1; i<q.length; i++) {
+		    if (q[i].indexOf(':')>0) addRange(a, q[i], f, r);
+		    else a.values.add(parseValue(q[i]));
+		}
+		for(Axis b: axes) {
+		    if (b.name.equals(a.name)) throw new Parameters.ParseException(f, r, "Parameter " + a.name + " is listed more than once");
+		}
+		axes.add(a);
+	    }
+	} finally {
+	    r.close();
+	}
+	return axes;
+    }
+
+    private static Object parseValue(String s) {
+	try {
+	    return Double.valueOf(s);
+	} catch(NumberFormatException ex) {
+	    return s;
+	}
+    }
+
+    /** Adds the values in the range from:to:step. The values are computed
+	in decimal, so that e.g. 0.1:0.3:0.1 produces exactly 0.1, 0.2, 0.3 */
+    private static void addRange(Axis a, String s, File f, LineNumberReader r) throws IOException {
+	String[] q = s.split(":");
+	if (q.length != 3) throw new Parameters.ParseException(f, r, "Invalid range " + s + "; expected from:to:step");
+	BigDecimal from, to, step;
+	try {
+	    from = new BigDecimal(q[0]);
+	    to = new BigDecimal(q[1]);
+	    step = new BigDecimal(q[2]);
+	} catch(NumberFormatException ex) {
+	    throw new Parameters.ParseException(f, r, "Invalid number in range " + s);
+	}
+	if (step.signum()==0 || step.signum() != to.subtract(from).signum() && to.compareTo(from)!=0) {
+	    throw new Parameters.ParseException(f, r, "Invalid range " + s + ": the step can't reach the end");
+	}
+	for(BigDecimal x = from; x.subtract(to).signum() * step.signum() <= 0; x = x.add(step)) {
+	    a.values.add(Double.valueOf(x.doubleValue()));
+	}
+    }
+
+    /** Formats a parameter value for the summary table */
+    private static String fmtValue(Object o) {
+	if (o instanceof Double) {
+	    double x = ((Double)o).doubleValue();
+	    if (x == Math.rint(x) && Math.abs(x) < 1e15) return "" + (long)x;
+	}
+	return o.toString();
+    }
+
+    static public void main(String argv[]) throws IOException {
+	Options.setInteractive(false);
+	System.out.println("Parameter sweep for Qsim ver. " + Qsim.version);
+
+	int ja = 0;
+	if (ja+1 >= argv.length) usage();
+	File f = new File(argv[ja++]);
+	if (!f.exists()) usage("File " + f + " does not exist!");
+	File specFile = new File(argv[ja++]);
+	if (!specFile.exists()) usage("File " + specFile + " does not exist!");
+	String outDirName = "sweep-qsim-" + Qsim.odFmt.format( new Date());
+	if (ja < argv.length) outDirName =argv[ja++];
+
+	ParseConfig ht = new ParseConfig(f);
+	Vector<Axis> axes = readSpec(specFile);
+	if (axes.size()==0) usage("The sweep spec file " + specFile + " lists no parameters");
+	int nScen = 1;
+	for(Axis a: axes) {
+	    // System properties would override the swept values
+	    if (System.getProperty(a.name) != null) usage("Parameter " + a.name + " is swept, and should not be also set with -D" + a.name);
+	    nScen *= a.values.size();
+	    System.out.println("Sweeping " + a.name + " over " + a.values.size() + " value(s)");
+	}
+
+	long seed = ht.getOptionLong("seed", 0);
+	int runs = ht.getOption("runs", 1);
+	if (runs < 1) usage();
+	long T = ht.getOptionLong("T", -1);
+	int threads = ht.getOption("threads", Runtime.getRuntime().availableProcessors());
+	if (threads < 1) usage("The number of threads must be positive");
+	boolean crn = ht.getOption("crn", false);
+
+	File g = new File(outDirName);
+	Qsim.checkOutDir(g);
+
+	// Set up all scenarios first, so that any errors in the parameter
+	// values are found before the long computation starts
+	NumberFormat nf = new DecimalFormat("000");
+	Object[][] values = new Object[nScen][];
+	Vector<Replication> all = new Vector<Replication>();
+	for(int i=0; i<nScen; i++) {
+	    ParseConfig sht = (ParseConfig)ht.clone();
+	    values[i] = new Object[axes.size()];
+	    int z = i;
+	    for(int m=axes.size()-1; m>=0; m--) {
+		Axis a = axes.elementAt(m);
+		values[i][m] = a.values.elementAt(z % a.values.size());
+		z /= a.values.size();
+		sht.put(a.name, values[i][m]);
+	    }
+	    System.out.println("Scenario " + i + ": " + describe(axes, values[i]));
+	    Parameters para;
+	    try {
+		para = new Parameters(sht);
+	    } catch(IllegalArgumentException ex) {
+		usage("Invalid parameters in scenario " + i + ": " + ex.getMessage());
+		return;
+	    }
+	    File sd = new File(g, "scenario-" + nf.format(i));
+	    Qsim.checkOutDir(sd);
+	    for(int k=0; k<runs; k++) {
+		Replication r = new Replication(para, k, runs, seed, T, null, new File(sd, "queue-"+ nf.format(k)+".dat"), true, crn, false);
+		r.label = " of scenario " + i;
+		all.add(r);
+	    }
+	}
+
+	System.out.println("Will carry out " + runs + " simulation run(s) for each of " + nScen + " scenarios, up to " + threads + " at a time.");
+	long t0 = System.currentTimeMillis();
+	Replication.runAll(all, threads);
+	long msec = System.currentTimeMillis() - t0;
+
+	String table = summary(axes, values, all, runs);
+	System.out.println(table);
+	System.out.println("All " + all.size() + " runs completed in " + msec + " msec");
+	File sf = new File(g, "summary.dat");
+	PrintWriter w = new PrintWriter(new FileWriter(sf));
+	w.print(table);
+	w.close();
+	System.out.println("Summary table saved to " + sf);
+    }
+
+    private static String describe(Vector<Axis> axes, Object[] v) {
+	StringBuffer b = new StringBuffer();
+	for(int m=0; m<axes.size(); m++) {
+	    b.append((m>0? ", ":"") + axes.elementAt(m).name + "=" + fmtValue(v[m]));
+	}
+	return b.toString();
+    }
+
+    private static final NumberFormat fmt = new DecimalFormat("0.0000");
+
+    /** Produces the summary table: for each scenario, the swept parameter
+	values, and the mean and the confidence interval half-width of each
+	run output. With -Dcompleted=STATS, the table also has the
+	percentiles of the waiting time and of the time in system, over
+	all runs of the scenario. */
+    static String summary(Vector<Axis> axes, Object[][] values, Vector<Replication> all, int runs) {
+	boolean withStats = all.size()>0 && all.elementAt(0).stats != null;
+	StringBuffer b = new StringBuffer("#scenario");
+	for(Axis a: axes) b.append("\t" + a.name);
+	for(String name: Replication.metricNames) {
+	    name = name.replace(' ', '_');
+	    b.append("\t" + name + "\t+-");
+	}
+	if (withStats) {
+	    for(String name: new String[] {"wait", "in_system"}) {
+		for(double q: QuantileSketch.reportLevels) b.append("\t" + name + "_p" + (int)Math.round(q*100));
+		b.append("\t" + name + "_max");
+	    }
+	}
+	b.append("\n");
+	for(int i=0; i<values.length; i++) {
+	    b.append(i);
+	    for(Object o: values[i]) b.append("\t" + fmtValue(o));
+	    for(int m=0; m<Replication.metricNames.length; m++) {
+		OnlineStats s = new OnlineStats();
+		for(int k=0; k<runs; k++) s.add(all.elementAt(i*runs+k).metric(m));
+		b.append("\t" + fmt.format(s.mean()) + "\t" + (runs>1? fmt.format(s.halfWidth(Replication.conf)) : "-"));
+	    }
+	    if (withStats) {
+		CompletionSink.Stats st = Replication.mergeStats(all.subList(i*runs, (i+1)*runs));
+		for(QuantileSketch z: new QuantileSketch[] {CompletionSink.Stats.merged(st.waitByLane), CompletionSink.Stats.merged(st.totalByLane)}) {
+		    for(double q: QuantileSketch.reportLevels) b.append("\t" + (z.count()>0? ""+Math.round(z.quantile(q)) : "-"));
+		    b.append("\t" + (z.count()>0? ""+z.max() : "-"));
+		}
+	    }
+	    b.append("\n");
+	}
+	return b.toString();
+    }
+}
@@ -0,0 +1,275 @@
+package qsim;
+
+import java.io.*;
+
+/** An append-only series of (t, value) samples with non-decreasing
+    t, stored in fixed-size chunks of primitive longs. It has a single
+    writer (the simulation thread), which may append a new sample or
+    update the value of the last one, and any number of readers (e.g. the
+    GUI thread repainting the crowd size chart), which never lock
+    anything, and so never hold up the writer.
+
+    <p>A reader obtains a {@link View}, which covers the samples present
+    at the time it was made. Since the chunks are never moved or
+    modified (other than the value of the last sample), the view stays
+    valid while the writer goes on appending. The writer may also drop
+    the oldest chunks (see {@link #trim(int)}); a view made earlier still
+    holds on to them.
+
+    <p>Reading the t of a given sample takes constant time, and finding
+    the sample in effect at a given time takes O(log n) time, so a
+    chart can be drawn by looking up just the samples needed for its
+    pixel columns. To summarize the samples in a pixel column, the
+    series also maintains a pyramid of aggregates (min, max and sum of
+    the values) over blocks of B, B<sup>2</sup>, B<sup>3</sup>, ...
+    consecutive samples, built as the series grows; the min, max and
+    mean over any range of samples can then be found by looking at
+    O(B log<sub>B</sub> n) aggregates (see {@link View#aggregate(int,
+    int, long[])}). The pyramid takes about 3/(2B) of the memory of
+    the samples themselves. It is discarded once the series has been
+    trimmed, as it is not needed for the bounded tail of a streaming log.
+ */
+public class TimeSeries implements Serializable {
+
+    /** Each chunk holds 1&lt;&lt;SHIFT samples */
+    static final int SHIFT = 12, CHUNK = 1<<SHIFT, MASK = CHUNK-1;
+
+    /** The list of chunks. Each chunk is a long[2*CHUNK] array, with t
+	and the value of the k-th sample stored at 2*k and 2*k+1. The
+	directory is replaced (never modified) when a chunk is added or
+	dropped. */
+    private static class Dir implements Serializable {
+	/** The index of the first sample of chunks[0] */
+	final int base;
+	final long[][] chunks;
+	Dir(int _base, long[][] _chunks) {
+	    base = _base;
+	    chunks = _chunks;
+	}
+    }
+
+    private volatile Dir dir = new Dir(0, new long[0][]);
+    /** The number of samples ever appended. The samples are published
+	by writing this variable after them. */
+    private volatile int size = 0;
+    /** The largest value ever stored */
+    private volatile long maxValue = 0;
+
+    /** The branching factor of the pyramid */
+    static final int B = 16;
+
+    /** One level of the pyramid: the aggregates of the consecutive
+	blocks of B^k samples, for some k. They are stored like the
+	samples, 3 longs (min, max, sum) per block, and published in the
+	same way. */
+    private static class Level implements Serializable {
+	volatile long[][] chunks = new long[0][];
+	/** The number of blocks whose aggregates have been published */
+	volatile int size = 0;
+
+	void add(long min, long max, long sum) {
+	    int n = size;
+	    long[][] c = chunks;
+	    if ((n>>SHIFT) >= c.length) {
+		long[][] a = new long[c.length+1][];
+		System.arraycopy(c, 0, a, 0, c.length);
+		a[c.length] = new long[3*CHUNK];
+		chunks = c = a;
+	    }
+	    long[] chunk = c[n>>SHIFT];
+	    chunk[3*(n&MASK)] = min;
+	    chunk[3*(n&MASK)+1] = max;
+	    chunk[3*(n&MASK)+2] = sum;
+	    size = n+1;
+	}
+
+	/** The f-th field (0=min, 1=max, 2=sum) of the j-th block */
+	long get(int j, int f) {
+	    return chunks[j>>SHIFT][3*(j&MASK)+f];
+	}
+    }
+
+    /** levels[k-1] holds the aggregates for blocks of B^k samples.
+	Only "final" samples (all but the last one, whose value may still
+	change) are included. Null if the pyramid has been discarded. */
+    private volatile Level[] levels = new Level[0];
+
+    /** The number of samples ever appended (including any dropped ones) */
+    public int size() {
+	return size;
+    }
+
+    /** The largest value ever stored (or 0, if the series is empty).
+	This includes the dropped samples, and any values of the last
+	sample that have been replaced. */
+    public long maxValue() {
+	return maxValue;
+    }
+
+    /** Appends a sample. Only to be called by the writer. */
+    void add(long t, long v) {
+	int n = size;
+	if (n > 0 && n % B == 0 && levels != null) addBlocks(n);
+	Dir d = dir;
+	int k = n - d.base;
+	if ((k>>SHIFT) >= d.chunks.length) {
+	    long[][] a = new long[d.chunks.length+1][];
+	    System.arraycopy(d.chunks, 0, a, 0, d.chunks.length);
+	    a[d.chunks.length] = new long[2*CHUNK];
+	    d = new Dir(d.base, a);
+	    dir = d;
+	}
+	long[] chunk = d.chunks[k>>SHIFT];
+	chunk[2*(k&MASK)] = t;
+	chunk[2*(k&MASK)+1] = v;
+	if (v > maxValue) maxValue = v;
+	size = n+1;
+    }
+
+    /** Changes the value of the last sample. Only to be called by the
+	writer. Readers may see either the old or the new value. */
+    void setLastValue(long v) {
+	int n = size;
+	if (n==0) throw new IllegalStateException("Empty series");
+	Dir d = dir;
+	int k = n - 1 - d.base;
+	d.chunks[k>>SHIFT][2*(k&MASK)+1] = v;
+	if (v > maxValue) maxValue = v;
+	size = n; // publish the new value
+    }
+
+    /** Updates the pyramid when the first n samples have become final,
+	and n is a multiple of B: the aggregate of the samples n-B thru
+	n-1 is added to level 1, and so on up the pyramid as long as
+	blocks are completed. */
+    private void addBlocks(int n) {
+	Dir d = dir;
+	long min = Long.MAX_VALUE, max = Long.MIN_VALUE, sum = 0;
+	for(int i=n-B; i<n; i++) {
+	    int k = i - d.base;
+	    long v = d.chunks[k>>SHIFT][2*(k&MASK)+1];
+	    if (v < min) min = v;
+	    if (v > max) max = v;
+	    sum += v;
+	}
+	Level[] lv = levels;
+	for(int k=0; ; k++) {
+	    if (k == lv.length) {
+		Level[] a = new Level[k+1];
+		System.arraycopy(lv, 0, a, 0, k);
+		a[k] = new Level();
+		levels = lv = a;
+	    }
+	    lv[k].add(min, max, sum);
+	    int m = lv[k].size;
+	    if (m % B != 0) break;
+	    // a block of the next level is complete
+	    min = Long.MAX_VALUE;
+	    max = Long.MIN_VALUE;
+	    sum = 0;
+	    for(int j=m-B; j<m; j++) {
+		min = Math.min(min, lv[k].get(j, 0));
+		max = Math.max(max, lv[k].get(j, 1));
+		sum += lv[k].get(j, 2);
+	    }
+	}
+    }
+
+    /** Drops the oldest chunks, as long as at least the specified number
+	of the most recent samples (and at least the last sample) remain.
+	The pyramid is discarded. Only to be called by the writer. */
+    void trim(int keep) {
+	levels = null;
+	Dir d = dir;
+	int drop = Math.max(0, size - Math.max(keep, 1) - d.base) >> SHIFT;
+	if (drop == 0) return;
+	long[][] a = new long[d.chunks.length - drop][];
+	System.arraycopy(d.chunks, drop, a, 0, a.length);
+	dir = new Dir(d.base + (drop<<SHIFT), a);
+    }
+
+    /** Returns a view of the samples that are currently present */
+    public View view() {
+	int n = size; // read before dir, so that dir covers all n samples
+	return new View(dir, n, levels);
+    }
+
+    /** A read-only view of the samples present at the time it was
+	made. Samples are identified by their index in the series, from
+	first() (inclusive) to end() (exclusive).
+     */
+    public static class View {
+	private final Dir d;
+	private final int end;
+	private final Level[] levels;
+	private View(Dir _d, int _end, Level[] _levels) {
+	    d = _d;
+	    end = _end;
+	    levels = _levels;
+	}
+	/** The index of the oldest sample available */
+	public int first() { return d.base; }
+	/** 1 + the index of the most recent sample */
+	public int end() { return end; }
+	/** Are there any samples at all? */
+	public boolean isEmpty() { return end <= d.base; }
+	/** The time of the i-th sample */
+	public long t(int i) {
+	    int k = i - d.base;
+	    return d.chunks[k>>SHIFT][2*(k&MASK)];
+	}
+	/** The value of the i-th sample */
+	public long value(int i) {
+	    int k = i - d.base;
+	    return d.chunks[k>>SHIFT][2*(k&MASK)+1];
+	}
+	/** Finds the most recent sample with a time not after t.
+	    @return its index, or first()-1 if all samples are after t
+	 */
+	public int find(long t) {
+	    int lo = first(), hi = end;
+	    while(lo < hi) { // the first sample after t
+		int mid = (lo+hi) >>> 1;
+		if (t(mid) <= t) lo = mid+1;
+		else hi = mid;
+	    }
+	    return lo-1;
+	}
+	/** Computes the min, max and sum of the values of the samples
+	    from-th thru (to-1)-th, using the largest aggregates available.
+	    @param out Receives {min, max, sum}
+	 */
+	public void aggregate(int from, int to, long[] out) {
+	    long min = Long.MAX_VALUE, max = Long.MIN_VALUE, sum = 0;
+	    int a = from;
+	    while(a < to) {
+		// the highest level with a published block starting at a
+		// and ending within the range
+		int k = 0;
+		long span = 1;
+		while(levels != null && k < levels.length) {
+		    long span2 = span * B;
+		    if (a % span2 != 0 || a + span2 > to ||
+			a / span2 >= levels[k].size) break;
+		    k++;
+		    span = span2;
+		}
+		if (k == 0) {
+		    long v = value(a);
+		    if (v < min) min = v;
+		    if (v > max) max = v;
+		    sum += v;
+		} else {
+		    int j = (int)(a / span);
+		    min = Math.min(min, levels[k-1].get(j, 0));
+		    max = Math.max(max, levels[k-1].get(j, 1));
+		    sum += levels[k-1].get(j, 2);
+		}
+		a += span;
+	    }
+	    out[0] = min;
+	    out[1] = max;
+	    out[2] = sum;
+	}
+    }
+}
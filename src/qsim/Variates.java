@@ -0,0 +1,75 @@
+package qsim;
+
+import java.util.random.RandomGenerator;
+
+/** Fast generation of the random variates used by the simulator,
+    with the configuration parameter "variates" set to FAST (see
+    {@link Parameters.Variates}).
+
+    <p>Exponentially distributed interarrival times are produced by
+    the ziggurat method of RandomGenerator.nextExponential(), which,
+    most of the time, only takes a random long, a table lookup and a
+    multiplication, rather than a logarithm. Screening times, which the
+    simulator truncates to integers anyway, are drawn from a table of
+    the cumulative distribution function of the truncated time ({@link
+    IntegerInverseCdf}), rather than by computing a square root and a
+    division. Given the same uniform random number, the table gives
+    the same integer as truncating the result of the exact formula,
+    except when the two fall on either side of an integer within
+    rounding error.
+
+    <p>Since the number of random numbers consumed by the ziggurat
+    method varies, the FAST mode does not reproduce the results of the
+    EXACT mode, though the distributions are the same.
+ */
+final class Variates {
+
+    private Variates() {}
+
+    /** The inverse of the cumulative distribution function (CDF) of
+	an integer-valued random variable with values in [base,
+	base+n-1], in the form of a table. A uniform random number u is
+	mapped to the value base+k such that cdf[k] &le; u &lt; cdf[k+1];
+	the search for k starts from a guide table entry, so that it
+	usually takes one or two comparisons.
+     */
+    static class IntegerInverseCdf {
+	/** The smallest value */
+	final long base;
+	/** cdf[k] is the probability that the value is below base+k;
+	    cdf[0]=0, and cdf[n]=1 */
+	private final double[] cdf;
+	/** guide[i] is the largest k with cdf[k] &le; i/n */
+	private final int[] guide;
+
+	/** @param _cdf The values of the CDF: the probability that the
+	    value is below base, base+1, ..., base+n; should start
+	    with 0 and end with 1
+	*/
+	IntegerInverseCdf(long _base, double[] _cdf) {
+	    base = _base;
+	    cdf = _cdf;
+	    final int n = cdf.length - 1;
+	    if (n < 1) throw new IllegalArgumentException("Empty CDF table");
+	    guide = new int[n];
+	    int k = 0;
+	    for(int i=0; i<n; i++) {
+		double u = (double)i / n;
+		while(k+1 < n && cdf[k+1] <= u) k++;
+		guide[i] = k;
+	    }
+	}
+
+	/** The value corresponding to the uniform random number u (0 &le; u &lt; 1) */
+	long value(double u) {
+	    final int n = guide.length;
+	    int k = guide[Math.min((int)(u * n), n-1)];
+	    while(k+1 < n && cdf[k+1] <= u) k++;
+	    return base + k;
+	}
+
+	long sample(RandomGenerator gen) {
+	    return value(gen.nextDouble());
+	}
+    }
+}
@@ -36,6 +36,50 @@ class CrowdPanel extends JPanel //implements ActionListener,
 	parent = _parent;
 	setPreferredSize(new Dimension(width, height));
 	setLayout(new BorderLayout());
+	setToolTipText("Mouse wheel: zoom in/out; drag: scroll; double-click: show all");
+	MouseAdapter zoomer = new ZoomHandler();
+	addMouseListener(zoomer);
+	addMouseMotionListener(zoomer);
+	addMouseWheelListener(zoomer);
+    }
+
+    /** Zooms and scrolls the crowd chart in response to the mouse wheel,
+	dragging, and double clicks */
+    private class ZoomHandler extends MouseAdapter {
+	/** Each notch of the mouse wheel changes the time range by this factor */
+	static final double WHEEL_FACTOR = 1.25;
+	private int lastX;
+
+	private CrowdPresentedData crowd() {
+	    return (parent != null && parent.presented instanceof CrowdPresentedData) ?
+		(CrowdPresentedData)parent.presented : null;
+	}
+
+	public void mouseWheelMoved(MouseWheelEvent e) {
+	    CrowdPresentedData c = crowd();
+	    if (c == null) return;
+	    c.zoom(e.getX(), Math.pow(WHEEL_FACTOR, e.getPreciseWheelRotation()));
+	    repaint();
+	}
+
+	public void mousePressed(MouseEvent e) {
+	    lastX = e.getX();
+	}
+
+	public void mouseDragged(MouseEvent e) {
+	    CrowdPresentedData c = crowd();
+	    if (c == null) return;
+	    c.pan(e.getX() - lastX);
+	    lastX = e.getX();
+	    repaint();
+	}
+
+	public void mouseClicked(MouseEvent e) {
+	    CrowdPresentedData c = crowd();
+	    if (c == null || e.getClickCount() < 2) return;
+	    c.resetZoom();
+	    repaint();
+	}
     }
 
     /** 
@@ -11,99 +11,186 @@ import javax.swing.*;
 
 
 import qsim.Qsim;
+import qsim.Forecast;
+import qsim.TimeSeries;
 
 /** Used to plot the crowd-againts-time curve
  */
 class CrowdPresentedData extends PresentedData {
+
+    /** The most recent forecast, to be shown along with the actual
+	crowd size; null if there is none */
+    volatile Forecast forecast = null;
     
-    public void paintPlot(Graphics2D g2d, Dimension bounds, boolean fromGUI, Qsim qsim) {
+    /** The time range shown when the user has zoomed in on a part of
+	the chart. If zoomT1 <= zoomT0, the whole history is shown, and
+	the chart follows the simulation as it goes. */
+    private double zoomT0 = 0, zoomT1 = 0;
+    /** The narrowest time range that can be shown */
+    static final double MIN_ZOOM_WIDTH = 10;
+
+    /** The time range shown, and the transform used, in the most recent
+	paint; used to convert mouse positions to times */
+    private double shownT0 = 0, shownT1 = 0, fullT1 = 0;
+    private AffineTransform shownAt = null;
 
-	Vector<long[]> logData = qsim.getLogData();
-	double realWidth=0, realHeight=0;
+    boolean isZoomed() {
+	return zoomT1 > zoomT0;
+    }
 
-	synchronized(logData) {
+    /** Shows the whole history again */
+    void resetZoom() {
+	zoomT0 = zoomT1 = 0;
+    }
 
-	
-	for(long[] q: logData) {
-	    if (q[0] > realWidth) realWidth = q[0];
-	    if (q[1] > realHeight) realHeight = q[1];
+    /** Zooms in or out, keeping the time under the mouse pointer in place.
+	@param px The x coordinate of the mouse pointer
+	@param factor The new width of the time range divided by the old one
+     */
+    void zoom(int px, double factor) {
+	AffineTransform at = shownAt;
+	if (at == null || shownT1 <= shownT0) return;
+	double t = (px - at.getTranslateX())/at.getScaleX();
+	t = Math.max(shownT0, Math.min(shownT1, t));
+	double w = Math.max(MIN_ZOOM_WIDTH, (shownT1 - shownT0) * factor);
+	double t0 = t - (t - shownT0) * w / (shownT1 - shownT0);
+	t0 = Math.max(0, t0);
+	if (t0 <= 0 && t0 + w >= fullT1) resetZoom();
+	else {
+	    zoomT0 = t0;
+	    zoomT1 = t0 + w;
 	}
+    }
 
-	final boolean web=false;
-	String title = "Crowd size for t=0..." + realWidth;
-	AffineTransform at = drawGrid(g2d, bounds, realWidth, realHeight, title, web);
-	g2d.setPaint(Color.black);
-
-	boolean simplify = true; // simplify the  curve when multiple
-	// points map to the same x coordinate
-
-	if (!simplify) {	
-	    Point2D.Double lastPoint =  new Point2D.Double(0,0);
-	    for(long[] q: logData) {
-		Point2D.Double thisPoint= new Point2D.Double((double)q[0], (double)q[1]);
-		g2d.draw( at.createTransformedShape(new Line2D.Double(lastPoint, thisPoint)));
-		lastPoint = thisPoint;
+    /** Moves the shown time range by so many pixels (positive dx means,
+	the chart is dragged to the right, to show earlier times) */
+    void pan(int dx) {
+	AffineTransform at = shownAt;
+	if (at == null || !isZoomed()) return;
+	double dt = Math.min(dx / at.getScaleX(), zoomT0);
+	zoomT0 -= dt;
+	zoomT1 -= dt;
+    }
+
+    public void paintPlot(Graphics2D g2d, Dimension bounds, boolean fromGUI, Qsim qsim) {
+
+	TimeSeries series = qsim.getLogData();
+	TimeSeries.View log = series.view();
+	final Forecast f = forecast;
+
+	double t1 = 0;
+	if (!log.isEmpty()) t1 = log.t(log.end()-1);
+	if (f != null) t1 = Math.max(t1, f.time(f.points()-1));
+	fullT1 = t1;
+	boolean zoomed = isZoomed();
+	double t0 = zoomed? zoomT0 : 0;
+	if (zoomed) t1 = zoomT1;
+
+	double realHeight = 0;
+	if (!zoomed) {
+	    realHeight = series.maxValue();
+	} else if (!log.isEmpty()) {
+	    // the highest point in the visible range only
+	    int from = Math.max(log.first(), log.find((long)Math.floor(t0)));
+	    int to = log.find((long)Math.floor(t1)) + 1;
+	    if (to > from) {
+		long[] agg = new long[3];
+		log.aggregate(from, to, agg);
+		realHeight = agg[1];
 	    }
-	} else { // simplified display, with a single vertical segment showing
-	    // multiple points with nearly-same x
-	    Point2D.Double lastPointReal =  new Point2D.Double(0,0);
-	    // last already-drawn point
-	    Point lastP = transformPoint(at, lastPointReal);
-	    int lastX = lastP.x;
-	    VerticalSegment vert = new VerticalSegment(lastP);
-	    
-	    for(long[] q: logData) {
-		Point2D.Double thisPointReal = new Point2D.Double((double)q[0], (double)q[1]);
-		
-		Point p = transformPoint(at, thisPointReal);
-		int x = p.x;
-		
-		if (x > lastX) {
-		    vert.drawIfNeeded(g2d, p);
-		    g2d.draw( new Line2D.Double(lastP, p));
-		    lastX = x;
-		    lastP = p;
-		} else {
-		    vert.include( p.y);
-		}
+	}
+	if (f != null) {
+	    for(int m=0; m<f.points(); m++) {
+		if (f.time(m) < t0 || f.time(m) > t1) continue;
+		realHeight = Math.max(realHeight, f.percentile(Forecast.levels.length-1, m));
 	    }
-	    vert.drawIfNeeded(g2d, lastP);
 	}
+	if (t1 <= t0 || realHeight <= 0) {
+	    // nothing to show yet; avoid a degenerate transform
+	    t1 = Math.max(t1, t0 + 1);
+	    realHeight = Math.max(realHeight, 1);
+	}
+
+	final boolean web=false;
+	String title = "Crowd size for t=" + (zoomed? t0 + "..." + t1 + " (zoomed in; double-click to show all)" :
+					     "0..." + t1);
+	if (f != null) title += "; forecast from t=" + f.t0 + " (" + f.n + " runs, " +
+			   (int)(Forecast.levels[0]*100) + "-" + (int)(Forecast.levels[Forecast.levels.length-1]*100) + "th percentile band and median)";
+	AffineTransform at = drawGrid(g2d, bounds, t0, t1, realHeight, title, web);
+	shownT0 = t0;
+	shownT1 = t1;
+	shownAt = at;
 
+	Shape clip = g2d.getClip();
+	g2d.clip(at.createTransformedShape(new Rectangle2D.Double(t0, 0, t1-t0, realHeight)));
+	if (f != null) paintForecast(g2d, at, f);
+	if (!log.isEmpty()) {
+	    Path2D.Double band = new Path2D.Double();
+	    Path2D.Double curve = crowdCurve(log, at, t0, t1, band);
+	    g2d.setPaint(Color.gray);
+	    g2d.draw(band);
+	    g2d.setPaint(Color.black);
+	    g2d.draw(curve);
 	}
-	    	
+	g2d.setClip(clip);
     }
 
-    /** Auxiliary class used for drawing a single vertical segment
-	representing multiple points with visibly the same x */
-    static class VerticalSegment {
-	int x;
-	int ySeg[] = new int[2];
-	VerticalSegment(Point p) { set(p); }
-	void set(Point p) {
-	    x = p.x;
-	    ySeg[0] = ySeg[1] = p.y;
-	}	    
-	private void drawIfNeeded(Graphics2D g2d, Point newP) {
-	    if (ySeg[0] != ySeg[1]) {
-		g2d.draw( new Line2D.Double( new Point( x, ySeg[0]),
-				      new Point( x, ySeg[1])));
+    /** Builds the crowd size curve for the time range [t0, t1] one pixel
+	column at a time. The curve goes through the mean crowd size of
+	the samples in each column; the range between their min and max
+	is shown as a vertical segment in the band path. The samples in
+	each column are found by binary search, and summarized with the
+	series' pyramid of aggregates, so the cost depends on the width of
+	the chart, rather than on the number of samples.
+	@param band Receives the min-max segments
+     */
+    private static Path2D.Double crowdCurve(TimeSeries.View log, AffineTransform at, double t0, double t1, Path2D.Double band) {
+	final double sx = at.getScaleX(), tx = at.getTranslateX();
+	final double sy = at.getScaleY(), ty = at.getTranslateY();
+	Path2D.Double path = new Path2D.Double();
+	int x0 = (int)Math.round(tx + sx*t0), x1 = (int)Math.round(tx + sx*t1);
+	// start with the sample in effect at t0, if any
+	int p = log.find((long)Math.floor(t0));
+	if (p >= log.first()) path.moveTo(x0, ty + sy*log.value(p));
+	else path.moveTo(x0, ty);
+	int i = Math.max(p+1, log.first()); // the first sample not yet drawn
+	int iEnd = log.find((long)Math.floor(t1)) + 1;
+	long[] agg = new long[3];
+	for(int x=x0; x<=x1 && i<iEnd; x++) {
+	    // the samples whose time rounds to this column
+	    long tEnd = (long)Math.ceil((x + 0.5 - tx)/sx);
+	    int last = (x==x1) ? iEnd-1 : Math.min(iEnd-1, log.find(tEnd-1));
+	    if (last < i) continue;
+	    log.aggregate(i, last+1, agg);
+	    double mean = (double)agg[2] / (last+1-i);
+	    if (agg[0] != agg[1]) {
+		band.moveTo(x, ty + sy*agg[0]);
+		band.lineTo(x, ty + sy*agg[1]);
 	    }
-	    set(newP);
+	    path.lineTo(x, ty + sy*mean);
+	    i = last+1;
 	}
-	void include(int y) {
-	    if (y<ySeg[0]) ySeg[0] = y;
-	    if (y>ySeg[1]) ySeg[1] = y;
-	}	
+	return path;
     }
-    
-    
-    /** Transforms q as per the specified affine transform, and then rounds
-	the result's coordinates to int
-     */
-    static Point transformPoint(AffineTransform at, Point2D.Double q) {
-	Point2D z = at.transform(q, null);
-	return new Point((int)Math.round(z.getX()), (int)Math.round(z.getY()));
+
+    /** Draws the forecast: the band between the lowest and the highest
+	percentiles, and the median line */
+    private static void paintForecast(Graphics2D g2d, AffineTransform at, Forecast f) {
+	final int np = f.points(), top = Forecast.levels.length-1;
+	Path2D.Double band = new Path2D.Double();
+	band.moveTo(f.time(0), f.percentile(0, 0));
+	for(int m=1; m<np; m++) band.lineTo(f.time(m), f.percentile(0, m));
+	for(int m=np-1; m>=0; m--) band.lineTo(f.time(m), f.percentile(top, m));
+	band.closePath();
+	g2d.setPaint(new Color(255, 128, 0, 64));
+	g2d.fill(at.createTransformedShape(band));
+
+	Path2D.Double median = new Path2D.Double();
+	int mid = top/2;
+	median.moveTo(f.time(0), f.percentile(mid, 0));
+	for(int m=1; m<np; m++) median.lineTo(f.time(m), f.percentile(mid, m));
+	g2d.setPaint(new Color(255, 128, 0));
+	g2d.draw(at.createTransformedShape(median));
     }
 
 }
@@ -41,7 +41,7 @@ class OptionDialog extends JDialog
 	static final String SET="Set", CANCEL="Cancel";
     }
     
-    private JTextField speedTF, tTF;
+    private JTextField speedTF, tTF, forecastRunsTF, forecastHorizonTF, fpsTF;
 
     ButtonGroup vsGroup;
     private OptionDialog(Frame frame,
@@ -88,6 +88,15 @@ class OptionDialog extends JDialog
 	list.add(new JLabel("Simulation time range (T)"));
 	list.add(tTF = new JTextField("" + Options.getT(), 10));	
 
+	list.add(new JLabel("Forecast: number of runs"));
+	list.add(forecastRunsTF = new JTextField("" + Options.getForecastRuns(), 10));	
+
+	list.add(new JLabel("Forecast: time horizon"));
+	list.add(forecastHorizonTF = new JTextField("" + Options.getForecastHorizon(), 10));	
+
+	list.add(new JLabel("Display: frames per second"));
+	list.add(fpsTF = new JTextField("" + Options.getFps(), 10));	
+
 
 	/*
 	list.add(new JLabel("Pi values (e.g. '0', or '0 0.1 0.2 ... 1'"));
@@ -178,6 +187,51 @@ class OptionDialog extends JDialog
 		JOptionPane.showMessageDialog(this,"Cannot parse value " + s);
 	    }
 
+	    s = forecastRunsTF.getText();
+	    try {
+		int val = Integer.parseInt(s);
+		if (val <= 0) {
+		    failed = true;
+		    JOptionPane.showMessageDialog(this,"Invalid number of forecast runs=" + s);
+		    return;
+		}
+		Options.setForecastRuns(val);
+		System.out.println("forecast.runs=" + val);
+	    } catch(Exception ex) {
+		failed = true;
+		JOptionPane.showMessageDialog(this,"Cannot parse value " + s);
+	    }
+
+	    s = forecastHorizonTF.getText();
+	    try {
+		long val = Long.parseLong(s);
+		if (val <= 0) {
+		    failed = true;
+		    JOptionPane.showMessageDialog(this,"Invalid forecast horizon=" + s);
+		    return;
+		}
+		Options.setForecastHorizon(val);
+		System.out.println("forecast.horizon=" + val);
+	    } catch(Exception ex) {
+		failed = true;
+		JOptionPane.showMessageDialog(this,"Cannot parse value " + s);
+	    }
+
+	    s = fpsTF.getText();
+	    try {
+		double val = Double.parseDouble(s);
+		if (val <= 0) {
+		    failed = true;
+		    JOptionPane.showMessageDialog(this,"Invalid frames per second=" + s);
+		    return;
+		}
+		Options.setFps(val);
+		System.out.println("fps=" + val);
+	    } catch(Exception ex) {
+		failed = true;
+		JOptionPane.showMessageDialog(this,"Cannot parse value " + s);
+	    }
+
 
 	    /*
 	    s = piTF.getText();
@@ -69,6 +69,16 @@ abstract class PresentedData {
        the positions of individual plot points to the screen coordinates
      */ 
     protected static AffineTransform drawGrid(Graphics2D g2d, Dimension bounds, double realWidth, double realHeight, String title, boolean web) {
+	return drawGrid(g2d, bounds, 0, realWidth, realHeight, title, web);
+    }
+
+    /**Draws a suitably spaced grid for the argument range [xMin:xMax] x [0:realHeight]
+       (used when the plot is zoomed in on a part of the time range).
+       @return the AffineTransform object which can be later use to convert
+       the positions of individual plot points to the screen coordinates
+     */
+    protected static AffineTransform drawGrid(Graphics2D g2d, Dimension bounds, double xMin, double xMax, double realHeight, String title, boolean web) {
+	double realWidth = xMax - xMin;
 	FontMetrics fm = g2d.getFontMetrics();
 	int textHt  = fm.getMaxAscent();
 
@@ -77,22 +87,22 @@ abstract class PresentedData {
 	AffineTransform at =  new 
 	    AffineTransform((bounds.width-2*margin)/realWidth, 0, 
 			    0, -(bounds.height-2*margin)/realHeight,
-			    margin,  bounds.height-margin);
+			    margin - xMin*(bounds.width-2*margin)/realWidth,  bounds.height-margin);
 
 	g2d.setPaint(Color.blue);
-	g2d.draw( at.createTransformedShape(new Rectangle2D.Double(0,0, realWidth,realHeight)));
+	g2d.draw( at.createTransformedShape(new Rectangle2D.Double(xMin,0, realWidth,realHeight)));
 
 	// text base position
 	Point2D p1;
 
-	p1 = at.transform(new  Point2D.Double(0.32, 0), null);
+	p1 = at.transform(new  Point2D.Double(xMin, 0), null);
 	g2d.drawString("Time",
 		       (int)p1.getX(), (int)p1.getY()+2*textHt+4);
 
-	p1 = at.transform(new  Point2D.Double(0, 0), null);
-	g2d.drawString("0", (int)p1.getX(), (int)p1.getY()+textHt+2);
+	p1 = at.transform(new  Point2D.Double(xMin, 0), null);
+	g2d.drawString(new DecimalFormat("0").format(xMin), (int)p1.getX(), (int)p1.getY()+textHt+2);
 
-	p1 = at.transform(new  Point2D.Double(0, realHeight), null);
+	p1 = at.transform(new  Point2D.Double(xMin, realHeight), null);
 	g2d.drawString("Crowd size    " + title,(int)p1.getX() + 5,
 		       (int)p1.getY()-2);
 
@@ -103,7 +113,7 @@ abstract class PresentedData {
 
 	NumberFormat fmt = new DecimalFormat("0");
 	//	int maxKx=  (int)(realWidth * 10);
-	for(int k=1; k * step <= realWidth; k++) {
+	for(long k=(long)Math.floor(xMin/step)+1; k * step <= xMax; k++) {
 	    double x = k * step;
 	    p1 = at.transform(new  Point2D.Double(x, 0), null);
 	    Point2D p1q = at.transform(new  Point2D.Double(x, 0), null);
@@ -117,7 +127,7 @@ abstract class PresentedData {
 			       (int)p1.getX(), (int)p1.getY()+textHt+2);
 	    }
 
-	    if (x+0.01<realWidth) {
+	    if (x+0.01<xMax) {
 		g2d.setPaint(Color.yellow);
 		Point2D p2 = at.transform(new  Point2D.Double(x, realHeight), null);
 		g2d.draw( new Line2D.Double(p1, p2));
@@ -129,8 +139,8 @@ abstract class PresentedData {
 	
 	for(int k=1; k *step <= realHeight; k++) {
 	    double y = k * step;
-	    p1 = at.transform(new  Point2D.Double(0, y), null);
-	    Point2D p1q = at.transform(new  Point2D.Double(0, y), null);
+	    p1 = at.transform(new  Point2D.Double(xMin, y), null);
+	    Point2D p1q = at.transform(new  Point2D.Double(xMin, y), null);
 	    p1q.setLocation( p1q.getX() + 10, p1q.getY());
 	    
 	    g2d.setPaint(Color.blue);
@@ -139,7 +149,7 @@ abstract class PresentedData {
 
 	    if (k % 2 == 0) {
 		g2d.setPaint(Color.yellow);
-		Point2D p2 = at.transform(new  Point2D.Double(realWidth,y), null);
+		Point2D p2 = at.transform(new  Point2D.Double(xMax,y), null);
 		g2d.draw( new Line2D.Double(p1, p2));
 	    }
 	}
@@ -292,6 +292,11 @@ public class QsimGUI extends MyJFrame {
 	    // re-layout the queue display area
 	    abs.layout(para.L);
 	    openArrivalsItem.setEnabled(true);
+	    if (!para.discardsCompleted()) {
+		String msg = "Note: the setting of \"completed\" in " + file + " only applies to batch runs; the GUI discards the completed customers";
+		System.out.println(msg);
+		setLabel("Successfully read data: " + para + " (the \"completed\" setting is ignored)", msg);
+	    }
 	} catch (Exception e) {
 	    String msg0 = "Error when reading config file " + file;
 	    String msg = msg0 + ":\n" + e.getMessage();
@@ -3,6 +3,7 @@ package qsim.gui;
 import java.io.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 import java.awt.*;
 import java.awt.event.*;
@@ -41,45 +42,97 @@ public class QsimPanel extends JPanel implements ActionListener
     JComboBox[] cboxes = null;
     JLabel[] labels = null;
     JLabel statsLabel = null, statsLabel2=null;
-    JButton buttonRun, buttonStop;
+    JButton buttonRun, buttonStop, buttonForecast;
+    /** In the what-if mode, the changes of lane status made by the user
+	are not applied to the simulation, but are used in forecasts. */
+    JCheckBox whatIfBox;
     CrowdPanel crowdPanel = null;
     
     static String WORKING = "Working", BROKEN="Broken";
 
     /** A hook for Qsim to display simulation progress using this
      panel.  Methods of this class are called from the simulator
-     thread to update status labels shown in this panel. */
+     thread, at most Options.getFps() times per second; they only
+     store the updates, which are then applied to the labels shown in
+     this panel on the event dispatch thread, all at once. If the
+     display falls behind, only the most recent update of each label
+     is applied, so the simulator never waits for the display. */
     public class GuiProgressDisplay extends Qsim.ProgressDisplay {
+	/** The updates that have not been applied yet; null if there are none */
+	private volatile AtomicReferenceArray<qsim.Queue.Snapshot> laneUpdates = null;
+	private final AtomicReference<String> summaryUpdate = new AtomicReference<String>(),
+	    stats2Update = new AtomicReference<String>();
+	private volatile boolean replot = false;
+	/** Has the application of the updates been scheduled on the
+	    event dispatch thread (and not started yet)? */
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+	/** Is called when the lane labels are (re)created */
+	void reset(int L) {
+	    laneUpdates = new AtomicReferenceArray<qsim.Queue.Snapshot>(L);
+	}
+
+	public boolean isActive() { return true; }
+	public double getFrameRate() { return Options.getFps(); }
 	/** Updates info text for the j-th lane */
-	public void display(int j, qsim.Queue q) {
-	    if (labels==null || j>=labels.length) return;
-	    int maxlen = (int)(labels[j].getWidth()/oCharWidth) - 4;
-	    labels[j].setText("<html>"+q.describeQueue2(true,maxlen)+"</html>");
+	public void display(int j, qsim.Queue.Snapshot s) {
+	    AtomicReferenceArray<qsim.Queue.Snapshot> u = laneUpdates;
+	    if (u==null || j>=u.length()) return;
+	    u.set(j, s);
 	}
 	public void showSummary(String s) {
-	    statsLabel.setText(s);
+	    summaryUpdate.set(s);
 	}
  	public void showStats2(String s) {
-	    statsLabel2.setText("<html><pre>" +s+ "</pre></html>");
+	    stats2Update.set(s);
 	}
 	/** Plots the updated historical crowd size graph */
-	public void plotCrowdData( Vector<long[]> logData) {
-	    if (crowdPanel != null) {
-		crowdPanel.repaint();
-	    }
+	public void plotCrowdData( qsim.TimeSeries logData) {
+	    replot = true;
+	    endFrame();
+	}
+	public void endFrame() {
+	    if (!scheduled.compareAndSet(false, true)) return;
+	    SwingUtilities.invokeLater(new Runnable() {
+		    public void run() {
+			applyUpdates();
+		    }
+		});
 	}
 
-	
+	/** Applies all stored updates. Runs on the event dispatch thread. */
+	private void applyUpdates() {
+	    scheduled.set(false);
+	    AtomicReferenceArray<qsim.Queue.Snapshot> u = laneUpdates;
+	    for(int j=0; u!=null && j<u.length() && j<labels.length; j++) {
+		qsim.Queue.Snapshot s = u.getAndSet(j, null);
+		if (s == null) continue;
+		int maxlen = (int)(labels[j].getWidth()/oCharWidth) - 4;
+		labels[j].setText("<html>"+s.describe(true,maxlen)+"</html>");
+	    }
+	    String s = summaryUpdate.getAndSet(null);
+	    if (s != null) statsLabel.setText(s);
+	    s = stats2Update.getAndSet(null);
+	    if (s != null) statsLabel2.setText("<html><pre>" +s+ "</pre></html>");
+	    if (replot) {
+		replot = false;
+		if (crowdPanel != null) crowdPanel.repaint();
+	    }
+	}
     }
 
     private final GuiProgressDisplay display = new GuiProgressDisplay();
 
     static class CMD {
-	static final String RUN = "Run", STOP = "Stop";
+	static final String RUN = "Run", STOP = "Stop", FORECAST = "Forecast", WHAT_IF = "WhatIf";
     }
 
     void layout(int L) {
 	parent.qsim.setProgressDisplay(display);
+	// any old forecast is for a different simulation
+	if (parent.presented instanceof CrowdPresentedData) {
+	    ((CrowdPresentedData)parent.presented).forecast = null;
+	}
 	//setLayout(new BorderLayout());
 	//setLayout(new GridLayout(L,2));
 	setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
@@ -87,6 +140,7 @@ public class QsimPanel extends JPanel implements ActionListener
 
 	cboxes = new JComboBox[L];
 	labels = new JLabel[L];
+	display.reset(L);
 	final int h = 20;
 
 	JPanel p = new JPanel();
@@ -107,6 +161,19 @@ public class QsimPanel extends JPanel implements ActionListener
 	buttonStop.setEnabled(false);
 	p.add(buttonStop);
 
+	buttonForecast = new JButton("Forecast");
+	buttonForecast.setActionCommand(CMD.FORECAST);    
+	buttonForecast.setMaximumSize(new Dimension(100, h));
+	buttonForecast.setToolTipText("Simulate several possible futures from the current state, with the lane status shown");
+	buttonForecast.addActionListener(this);
+	p.add(buttonForecast);
+
+	whatIfBox = new JCheckBox("What-if");
+	whatIfBox.setActionCommand(CMD.WHAT_IF);    
+	whatIfBox.setToolTipText("If checked, changes of lane status are only used in forecasts, and are applied to the simulation when unchecked");
+	whatIfBox.addActionListener(this);
+	p.add(whatIfBox);
+
 	statsLabel = new JLabel("Stats for all lanes will go here");
 	statsLabel.setMaximumSize(new Dimension(Integer.MAX_VALUE,h));
 	p.add(statsLabel);
@@ -179,19 +246,32 @@ public class QsimPanel extends JPanel implements ActionListener
 		if (e.getSource() == cboxes[j]) {
 		    String selected = (String)cboxes[j].getSelectedItem();
 		    boolean broken = (selected==BROKEN);
-		    parent.qsim.lanes[j].setBroken(broken);
+		    if (whatIfBox.isSelected()) {
+			parent.setLabel("What if lane " + j + " were " + (broken? "broken": "fixed") + "? Forecasting...");
+			startForecast();
+			return;
+		    }
+		    parent.qsim.setBroken(j, broken);
 		    parent.setLabel("Lane " + j + " is now " + (broken? "broken": "fixed"));
-		    display.display(j, parent.qsim.lanes[j]);
 		    return;
 		}
 	    }
 	}
 
-	if (CMD.RUN.equals(e.getActionCommand())) {
+	if (CMD.FORECAST.equals(e.getActionCommand())) {
+	    parent.setLabel("Forecasting...");
+	    startForecast();
+	} else if (CMD.WHAT_IF.equals(e.getActionCommand())) {
+	    if (!whatIfBox.isSelected()) applyLaneStatus();
+	} else if (CMD.RUN.equals(e.getActionCommand())) {
 	    buttonRun.setEnabled(false);
 	    buttonStop.setEnabled(true);
 	    parent.fileMenu.setEnabled(false);
-	    parent.presented = new CrowdPresentedData();
+	    CrowdPresentedData pd = new CrowdPresentedData();
+	    if (parent.presented instanceof CrowdPresentedData) {
+		pd.forecast = ((CrowdPresentedData)parent.presented).forecast;
+	    }
+	    parent.presented = pd;
 	    (new QsimWrapper()).start();
 	} else
 	    if (CMD.STOP.equals(e.getActionCommand())) {
@@ -204,6 +284,61 @@ public class QsimPanel extends JPanel implements ActionListener
 	}
 
     }
+    /** The lane status selected by the user (which, in the what-if mode,
+	may differ from that in the simulation) */
+    private boolean[] selectedLaneStatus() {
+	boolean[] broken = new boolean[cboxes.length];
+	for(int j=0; j<cboxes.length; j++) {
+	    broken[j] = (cboxes[j].getSelectedItem()==BROKEN);
+	}
+	return broken;
+    }
+
+    /** Applies the lane status selected by the user to the simulation,
+	when leaving the what-if mode */
+    private void applyLaneStatus() {
+	boolean[] broken = selectedLaneStatus();
+	int cnt = 0;
+	for(int j=0; j<broken.length; j++) {
+	    if (parent.qsim.lanes[j].getSnapshot().broken == broken[j]) continue;
+	    parent.qsim.setBroken(j, broken[j]);
+	    cnt++;
+	}
+	parent.setLabel("Applied the status changes of " + cnt + " lane(s)");
+    }
+
+    /** Starts a forecast from the current state of the simulation, with
+	the lane status selected by the user. When it's ready, it is shown
+	on the crowd size chart. */
+    private void startForecast() {
+	if (!(parent.presented instanceof CrowdPresentedData)) {
+	    parent.presented = new CrowdPresentedData();
+	}
+	final CrowdPresentedData pd = (CrowdPresentedData)parent.presented;
+	final Qsim qsim = parent.qsim;
+	Forecast.start(qsim, selectedLaneStatus(), Options.getForecastRuns(), Options.getForecastHorizon(), new Forecast.Listener() {
+		public void forecastDone(final Forecast f) {
+		    SwingUtilities.invokeLater(new Runnable() {
+			    public void run() {
+				if (parent.qsim != qsim) return; // stale
+				pd.forecast = f;
+				if (crowdPanel != null) crowdPanel.repaint();
+				int last = f.points()-1;
+				parent.setLabel("Forecast for t=" + f.time(last) + ": median crowd " + Math.round(f.percentile(1, last)) + ", " + (int)(Forecast.levels[0]*100) + "-" + (int)(Forecast.levels[2]*100) + "th percentile range " + Math.round(f.percentile(0, last)) + " to " + Math.round(f.percentile(2, last)));
+			    }
+			});
+		}
+		public void forecastFailed(final Exception ex) {
+		    ex.printStackTrace(System.err);
+		    SwingUtilities.invokeLater(new Runnable() {
+			    public void run() {
+				parent.setLabel("Forecast failed: " + ex.getMessage());
+			    }
+			});
+		}
+	    });
+    }
+
     /*
    public void mouseClicked(MouseEvent e) {
     }